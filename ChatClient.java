@@ -0,0 +1,1913 @@
+package echochamber;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.nio.file.*;
+import javax.sound.sampled.*;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+public class ChatClient {
+    private static final String SERVER_ADDRESS = "localhost";
+    private static final int SERVER_PORT = 5000;
+    private static final String CLIENT_LOGS_DIR = "client_logs";
+    private static final String DOWNLOADS_DIR = "downloads";
+    private static final String VOICE_RECORDINGS_DIR = "recordings";
+    private static PrintWriter logWriter;
+    private static boolean isRecording = false;
+    private static TargetDataLine micLine;
+    private static Socket socket;
+    private static BufferedReader in;
+    private static PrintWriter out;
+    private static DataOutputStream dataOut;
+    private static DataInputStream dataIn;
+    private static boolean fileTransferInProgress = false;
+    private static final Object transferLock = new Object(); // Lock object for synchronization
+    
+    // Wire protocol: "binary" frames (negotiated at connect) or the legacy "text" lines
+    private static final String PROTOCOL = System.getProperty("chat.protocol", "binary");
+    private static boolean binaryProtocol = false;
+    private static int protocolVersion = 0; // Agreed binary protocol version
+    private static final Object writeLock = new Object(); // Keeps frames from different threads whole
+    
+    // Binary protocol constants (must match ChatServer.Frames)
+    private static final int PROTOCOL_VERSION = 3;
+    private static final String HELLO_PREFIX = "\0ECHO/";
+    private static final byte FRAME_CHAT = 1;
+    private static final byte FRAME_COMMAND = 2;
+    private static final byte FRAME_CONTROL = 3;
+    private static final byte FRAME_DATA = 4;
+    private static final byte FRAME_STREAM_OPEN = 5;
+    private static final byte FRAME_STREAM_RESET = 6;
+    private static final byte FLAG_END_STREAM = 1;
+    private static final byte FLAG_SEQUENCED = 2; // Version 3: room chat led by its 8-byte sequence number
+    private static final int FRAME_HEADER_SIZE = 10;
+    private static final int UPLOAD_CHUNK_SIZE = 16 * 1024;
+    
+    // Binary protocol transfers run on their own streams next to chat: uploads on odd
+    // stream ids we pick, downloads on even ids the server picks
+    private static final AtomicInteger nextStreamId = new AtomicInteger(1);
+    private static final Set<Integer> resetStreams = ConcurrentHashMap.newKeySet();
+    private static final Map<Integer, Download> downloads = new HashMap<>(); // Listener thread only
+    // Version 2: uploads that sent their digest and wait for the server's answer before
+    // sending any bytes. Completes with UPLOAD_COMPLETE, UPLOAD_CONTINUE or null (reset).
+    private static final Map<Integer, CompletableFuture<String>> uploadChecks = new ConcurrentHashMap<>();
+    private static final long UPLOAD_CHECK_TIMEOUT_SECONDS = 30;
+    
+    // Version 3: what we need to resume the session after a dropped connection. The
+    // server hands out the token at login; JOINED and sequenced chat keep room and seq current.
+    private static volatile String sessionUser;
+    private static volatile String resumeToken;
+    private static volatile String currentRoom;
+    private static volatile long lastSeq = -1;
+    private static volatile boolean quitting = false;
+    
+    // A lost connection is retried after a random delay of up to base * 2^attempt ms,
+    // capped at max (full jitter), so clients dropped together by a server restart do not
+    // all come back at once. 0 attempts turns reconnecting off.
+    private static final long RECONNECT_BASE_MILLIS = Math.max(1, Long.getLong("chat.reconnect.base-ms", 500));
+    private static final long RECONNECT_MAX_MILLIS = Long.getLong("chat.reconnect.max-ms", 30_000);
+    private static final int RECONNECT_ATTEMPTS = Integer.getInteger("chat.reconnect.attempts", 12);
+    private static final String DEFAULT_ROOM = "General"; // Where the server puts us at login
+    private static volatile String loginName; // Last name we sent before the server accepted one
+    private static volatile boolean loggedIn = false;
+    private static volatile boolean reconnecting = false;
+    private static int reconnectAttempt = 0; // Listener thread only; reset once logged in again
+    
+    // Large binary-protocol downloads are split into this many range requests, each on
+    // its own connection, capped by how often the server's download ticket can be used
+    private static final int MAX_SERVER_STREAMS = 8; // Must match ChatServer.MAX_STREAMS_PER_CLIENT
+    private static final int DOWNLOAD_STREAMS =
+        Math.max(1, Math.min(MAX_SERVER_STREAMS, Integer.getInteger("chat.download.streams", 4)));
+    private static final long MIN_PART_SIZE = 512 * 1024; // Smaller files are not worth splitting
+    // Original name -> stored name for size probes awaiting their (empty) stream
+    private static final Map<String, String> pendingProbes = new ConcurrentHashMap<>();
+    private static final Map<String, ParallelDownload> parallelDownloads = new ConcurrentHashMap<>();
+    
+    // A download (or one range of a file) arriving as DATA frames on one stream. Bytes
+    // are written at their position in the file, so a resumed download keeps the prefix
+    // already on disk.
+    private static class Download implements Closeable {
+        final String path;
+        final long offset;
+        final long size;
+        final long total;
+        final String sha256; // Whole-file digest from the server, or null
+        final boolean voice;
+        final FileChannel fileOut;
+        final ParallelDownload group; // Set when this is one range of a parallel download
+        final int part;
+        long received;
+        int percentCompleted;
+        
+        Download(String path, long offset, long size, long total, String sha256, boolean voice) throws IOException {
+            this.path = path;
+            this.offset = offset;
+            this.size = size;
+            this.total = total;
+            this.sha256 = sha256;
+            this.voice = voice;
+            this.group = null;
+            this.part = -1;
+            this.fileOut = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (reachesEnd()) {
+                // Anything past offset is stale: a failed resume or an older file of the same name
+                fileOut.truncate(offset);
+            }
+        }
+        
+        Download(ParallelDownload group, int part) {
+            this.path = group.path;
+            this.offset = group.partStarts[part];
+            this.size = group.partSizes[part];
+            this.total = group.total;
+            this.sha256 = null;
+            this.voice = false;
+            this.group = group;
+            this.part = part;
+            this.fileOut = group.fileOut;
+        }
+        
+        boolean reachesEnd() {
+            return offset + size == total;
+        }
+        
+        void write(byte[] payload, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(payload, 0, length);
+            while (buffer.hasRemaining()) {
+                fileOut.write(buffer, offset + received + buffer.position());
+            }
+            received += length;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            if (group == null) {
+                fileOut.close();
+            }
+        }
+    }
+    
+    // One file fetched as several ranges, each on its own connection authenticated with
+    // the server's download ticket and written at its own position in a file preallocated
+    // to the full size. Parts write and count progress holding the group's lock, so
+    // abandon() can cut the file back without a late write landing past the cut.
+    private static class ParallelDownload {
+        final String path;
+        final String storedName;
+        final long total;
+        final String sha256;
+        final String ticket;
+        final FileChannel fileOut;
+        final long[] partStarts;
+        final long[] partSizes;
+        final Download[] parts;
+        final Socket[] sockets;
+        int partsDone;
+        long received;
+        int percentCompleted;
+        volatile boolean failed;
+        
+        ParallelDownload(String path, String storedName, long offset, long total, String sha256, String ticket,
+                         int count) throws IOException {
+            this.path = path;
+            this.storedName = storedName;
+            this.total = total;
+            this.sha256 = sha256;
+            this.ticket = ticket;
+            try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+                // Drop anything past the verified prefix, then reserve the rest in one go
+                file.setLength(offset);
+                file.setLength(total);
+            }
+            this.fileOut = FileChannel.open(Paths.get(path), StandardOpenOption.WRITE);
+            this.partStarts = new long[count];
+            this.partSizes = new long[count];
+            this.parts = new Download[count];
+            this.sockets = new Socket[count];
+            long remaining = total - offset;
+            long start = offset;
+            for (int i = 0; i < count; i++) {
+                partStarts[i] = start;
+                partSizes[i] = remaining / count + (i < remaining % count ? 1 : 0);
+                start += partSizes[i];
+                parts[i] = new Download(this, i);
+            }
+        }
+        
+        synchronized void write(Download part, byte[] payload, int length) throws IOException {
+            if (failed) {
+                throw new IOException("Download abandoned");
+            }
+            part.write(payload, length);
+            received += length;
+            int newPercentCompleted = (int) ((received * 100) / (total - partStarts[0]));
+            if (newPercentCompleted >= percentCompleted + 10) {
+                percentCompleted = newPercentCompleted;
+                System.out.println("Download progress: " + percentCompleted + "%");
+            }
+        }
+        
+        // Cuts the file back to what arrived contiguously from the start, so a later
+        // /getfile resumes from there instead of trusting the preallocated holes, and
+        // drops the connections of the parts still running
+        synchronized void abandon() {
+            if (failed) {
+                return;
+            }
+            failed = true;
+            for (Socket socket : sockets) {
+                try {
+                    if (socket != null) {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+            }
+            long end = partStarts[0];
+            for (int i = 0; i < partStarts.length; i++) {
+                long got = parts[i].received;
+                end = partStarts[i] + got;
+                if (got < partSizes[i]) {
+                    break;
+                }
+            }
+            try {
+                fileOut.truncate(end);
+                fileOut.close();
+            } catch (IOException e) {
+                System.err.println("Error truncating partial download " + path + ": " + e.getMessage());
+            }
+        }
+    }
+    
+    // Command type enum to handle special server requests
+    private enum CommandType {
+        SEND_FILE,
+        RECEIVE_FILE,
+        SEND_VOICE,
+        RECEIVE_VOICE,
+        NORMAL
+    }
+    
+    // Command class to store server requests
+    private static class Command {
+        CommandType type;
+        String message;
+        
+        public Command(CommandType type, String message) {
+            this.type = type;
+            this.message = message;
+        }
+    }
+    
+    // Queue for special commands from server
+    private static BlockingQueue<Command> commandQueue = new LinkedBlockingQueue<>();
+    
+    /**
+     * Headless load generator, run instead of the interactive client when -Dchat.bots is
+     * set. Opens that many binary-protocol connections under unique names, spreads them
+     * over rooms by weight, then sends chat from random bots at a fixed total rate. Each
+     * message carries the time it was due to be sent, so every copy delivered back to a
+     * bot gives one end-to-end latency sample; using the scheduled rather than the actual
+     * send time keeps a stalled server from hiding its own backlog. One selector thread
+     * reads all connections and finds the timestamp in the raw frame bytes, so the
+     * generator itself stays cheap at thousands of connections.
+     *
+     *   -Dchat.bots=N                  connections to open
+     *   -Dchat.bots.rooms=A:3,B:1      rooms and their weights (default General)
+     *   -Dchat.bots.rate=100           messages per second, across all bots
+     *   -Dchat.bots.duration-s=60      how long to send
+     *   -Dchat.bots.message-size=64    approximate chat text length in bytes
+     *   -Dchat.bots.prefix=bot         start of each bot's name
+     */
+    static final class BotSwarm {
+        static final int BOTS = Integer.getInteger("chat.bots", 0);
+        private static final String ROOMS = System.getProperty("chat.bots.rooms", DEFAULT_ROOM);
+        private static final double RATE = Math.max(0.1, Double.parseDouble(System.getProperty("chat.bots.rate", "100")));
+        private static final long DURATION_SECONDS = Long.getLong("chat.bots.duration-s", 60);
+        private static final int MESSAGE_SIZE = Integer.getInteger("chat.bots.message-size", 64);
+        private static final String PREFIX = System.getProperty("chat.bots.prefix", "bot");
+        private static final int CONNECT_THREADS = 32;
+        private static final long DRAIN_MILLIS = 2000; // Time for the last messages to arrive
+        private static final byte[] MARKER = "~t=".getBytes(StandardCharsets.UTF_8);
+        
+        private static final class Bot {
+            final String name;
+            final String room;
+            final SocketChannel channel;
+            ByteBuffer in = ByteBuffer.allocate(16 * 1024); // Selector thread only
+            // Frames the socket would not take yet, flushed by the selector thread on
+            // OP_WRITE; guarded by the bot
+            final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+            SelectionKey key;
+            
+            Bot(String name, String room, SocketChannel channel) {
+                this.name = name;
+                this.room = room;
+                this.channel = channel;
+            }
+        }
+        
+        // Selector thread only, until it has stopped
+        private static final LatencyHistogram latencies = new LatencyHistogram();
+        private static long delivered;
+        private static int lost;
+        private static volatile boolean running = true;
+        // Sending thread only
+        private static long failedSends;
+        
+        static void run() throws IOException, InterruptedException {
+            List<String> roomNames = new ArrayList<>();
+            List<Integer> weights = new ArrayList<>();
+            int totalWeight = 0;
+            for (String entry : ROOMS.split(",")) {
+                String[] parts = entry.trim().split(":");
+                int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+                roomNames.add(parts[0].trim());
+                weights.add(weight);
+                totalWeight += weight;
+            }
+            
+            // Seeded, so a run with the same settings puts the same bots in the same rooms
+            Random random = new Random(BOTS);
+            String[] assigned = new String[BOTS];
+            for (int i = 0; i < BOTS; i++) {
+                int pick = random.nextInt(totalWeight);
+                int room = 0;
+                while (pick >= weights.get(room)) {
+                    pick -= weights.get(room++);
+                }
+                assigned[i] = roomNames.get(room);
+            }
+            
+            System.out.printf("Connecting %d bots to %s:%d%n", BOTS, SERVER_ADDRESS, SERVER_PORT);
+            long connectStart = System.nanoTime();
+            ExecutorService connectors = Executors.newFixedThreadPool(Math.min(BOTS, CONNECT_THREADS));
+            List<Future<Bot>> pending = new ArrayList<>();
+            for (int i = 0; i < BOTS; i++) {
+                String name = PREFIX + i;
+                String room = assigned[i];
+                pending.add(connectors.submit(() -> logIn(name, room)));
+            }
+            List<Bot> bots = new ArrayList<>();
+            for (Future<Bot> future : pending) {
+                try {
+                    bots.add(future.get());
+                } catch (ExecutionException e) {
+                    lost++;
+                    if (lost <= 5) {
+                        System.err.println("Bot failed to connect: " + e.getCause());
+                    }
+                }
+            }
+            connectors.shutdown();
+            if (bots.isEmpty()) {
+                System.err.println("No bots connected");
+                return;
+            }
+            System.out.printf("%d bots logged in in %.1f s%n", bots.size(), (System.nanoTime() - connectStart) / 1e9);
+            
+            Selector selector = Selector.open();
+            for (Bot bot : bots) {
+                bot.channel.configureBlocking(false);
+                bot.key = bot.channel.register(selector, SelectionKey.OP_READ, bot);
+            }
+            Thread reader = new Thread(() -> readAll(selector), "bot-reader");
+            reader.start();
+            
+            long sendStart = System.nanoTime();
+            long sent = send(bots);
+            long sendNanos = System.nanoTime() - sendStart;
+            Thread.sleep(DRAIN_MILLIS);
+            running = false;
+            selector.wakeup();
+            reader.join();
+            // Copies are counted until the reader stops, so the drain is part of their window
+            long deliverNanos = System.nanoTime() - sendStart;
+            selector.close();
+            
+            for (Bot bot : bots) {
+                try {
+                    // Ends the session for good, so the server does not hold it for a resume;
+                    // with the selector gone the channel can block until the rest is written
+                    bot.channel.configureBlocking(true);
+                    for (ByteBuffer data : bot.pending) {
+                        bot.channel.write(data);
+                    }
+                    bot.channel.write(frame(FRAME_CONTROL, "BYE"));
+                    bot.channel.close();
+                } catch (IOException e) {
+                    // Already gone
+                }
+            }
+            
+            double sendSeconds = sendNanos / 1e9;
+            double deliverSeconds = deliverNanos / 1e9;
+            System.out.printf("Bots:       %d connected, %d failed or dropped%n", bots.size(), lost);
+            System.out.printf("Sent:       %d messages in %.1f s (%.1f/s), %d failed%n",
+                              sent, sendSeconds, sent / sendSeconds, failedSends);
+            System.out.printf("Delivered:  %d copies in %.1f s including the drain (%.1f/s)%n",
+                              delivered, deliverSeconds, delivered / deliverSeconds);
+            System.out.printf("Latency ms: p50 %.2f  p99 %.2f  p99.9 %.2f  max %.2f%n",
+                              latencies.percentile(0.50) / 1000.0, latencies.percentile(0.99) / 1000.0,
+                              latencies.percentile(0.999) / 1000.0, latencies.max() / 1000.0);
+        }
+        
+        // Blocking handshake: prompt, binary hello, name, then the bot's room
+        private static Bot logIn(String name, String room) throws IOException {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(SERVER_ADDRESS, SERVER_PORT));
+            try {
+                channel.socket().setTcpNoDelay(true);
+                InputStream socketIn = channel.socket().getInputStream();
+                if (readRawLine(socketIn) == null) {
+                    throw new EOFException("Server closed the connection");
+                }
+                Bot bot = new Bot(name, room, channel);
+                write(bot, ByteBuffer.wrap((HELLO_PREFIX + PROTOCOL_VERSION + "\n").getBytes(StandardCharsets.UTF_8)));
+                String reply = readRawLine(socketIn);
+                if (reply == null || !reply.startsWith(HELLO_PREFIX)) {
+                    throw new IOException("Server does not support the binary protocol");
+                }
+                write(bot, frame(FRAME_CHAT, name));
+                if (!DEFAULT_ROOM.equals(room)) {
+                    // Says it already exists if another bot got there first
+                    write(bot, frame(FRAME_COMMAND, "/create " + room));
+                    write(bot, frame(FRAME_COMMAND, "/join " + room));
+                }
+                return bot;
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+        
+        // Paces messages against a fixed schedule and returns how many were written;
+        // writes that fail are counted in failedSends
+        private static long send(List<Bot> bots) {
+            long interval = (long) (1_000_000_000L / RATE);
+            long start = System.nanoTime();
+            long end = start + TimeUnit.SECONDS.toNanos(DURATION_SECONDS);
+            StringBuilder padding = new StringBuilder();
+            while (padding.length() < MESSAGE_SIZE - 24) {
+                padding.append("lorem ipsum ");
+            }
+            String filler = padding.toString();
+            long sent = 0;
+            long scheduled = 0;
+            for (long due = start; due < end; due = start + scheduled * interval) {
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                Bot bot = bots.get(ThreadLocalRandom.current().nextInt(bots.size()));
+                scheduled++;
+                try {
+                    write(bot, frame(FRAME_CHAT, "~t=" + due + " " + filler));
+                    sent++;
+                } catch (IOException | CancelledKeyException e) {
+                    // The reader counts the bot as lost
+                    failedSends++;
+                }
+            }
+            return sent;
+        }
+        
+        private static void readAll(Selector selector) {
+            try {
+                while (running) {
+                    selector.select(100);
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        Bot bot = (Bot) key.attachment();
+                        try {
+                            if (key.isWritable()) {
+                                flush(bot);
+                            }
+                            if (key.isReadable()) {
+                                if (bot.channel.read(bot.in) < 0) {
+                                    throw new EOFException();
+                                }
+                                onFrames(bot);
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            key.cancel();
+                            lost++;
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        
+        // Takes every complete frame out of the bot's buffer, growing it for a frame
+        // that does not fit
+        private static void onFrames(Bot bot) {
+            ByteBuffer in = bot.in;
+            in.flip();
+            while (in.remaining() >= FRAME_HEADER_SIZE) {
+                int length = in.getInt(in.position() + 6);
+                if (in.remaining() < FRAME_HEADER_SIZE + length) {
+                    if (FRAME_HEADER_SIZE + length > in.capacity()) {
+                        ByteBuffer larger = ByteBuffer.allocate(FRAME_HEADER_SIZE + length);
+                        larger.put(in);
+                        bot.in = larger;
+                        return;
+                    }
+                    break;
+                }
+                if (in.get(in.position()) == FRAME_CHAT) {
+                    long due = timestamp(in, in.position() + FRAME_HEADER_SIZE, length);
+                    if (due >= 0) {
+                        latencies.record((System.nanoTime() - due) / 1000);
+                        delivered++;
+                    }
+                }
+                in.position(in.position() + FRAME_HEADER_SIZE + length);
+            }
+            in.compact();
+        }
+        
+        // The number after the marker, or -1 for chat that is not ours
+        private static long timestamp(ByteBuffer in, int start, int length) {
+            int end = start + length;
+            search:
+            for (int i = start; i <= end - MARKER.length; i++) {
+                for (int j = 0; j < MARKER.length; j++) {
+                    if (in.get(i + j) != MARKER[j]) {
+                        continue search;
+                    }
+                }
+                long value = 0;
+                int digits = 0;
+                for (int k = i + MARKER.length; k < end && digits < 19; k++, digits++) {
+                    byte b = in.get(k);
+                    if (b < '0' || b > '9') {
+                        break;
+                    }
+                    value = value * 10 + (b - '0');
+                }
+                return digits > 0 ? value : -1;
+            }
+            return -1;
+        }
+        
+        private static ByteBuffer frame(byte type, String text) {
+            byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + payload.length);
+            frame.put(type).put((byte) 0).putInt(0).putInt(payload.length).put(payload);
+            frame.flip();
+            return frame;
+        }
+        
+        // Blocking channels (while logging in) take the whole frame. Once the bots are
+        // non-blocking, whatever the socket will not take is queued behind any earlier
+        // leftovers for the selector thread, so the sender never waits on a slow bot.
+        private static void write(Bot bot, ByteBuffer data) throws IOException {
+            synchronized (bot) {
+                if (bot.pending.isEmpty()) {
+                    bot.channel.write(data);
+                }
+                if (data.hasRemaining()) {
+                    bot.pending.add(data);
+                    bot.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    bot.key.selector().wakeup();
+                }
+            }
+        }
+        
+        // Selector thread, on OP_WRITE
+        private static void flush(Bot bot) throws IOException {
+            synchronized (bot) {
+                while (!bot.pending.isEmpty()) {
+                    ByteBuffer head = bot.pending.peek();
+                    bot.channel.write(head);
+                    if (head.hasRemaining()) {
+                        return;
+                    }
+                    bot.pending.poll();
+                }
+                bot.key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+    }
+    
+    /**
+     * Latency samples in microseconds, counted in buckets that double in width every
+     * 16 buckets, so any value is reported within about 6% while the whole histogram
+     * is one fixed array. Not thread-safe.
+     */
+    static final class LatencyHistogram {
+        private static final int SUB_BUCKETS = 16;
+        private final long[] counts = new long[64 * SUB_BUCKETS];
+        private long total;
+        private long max;
+        
+        void record(long value) {
+            value = Math.max(0, value);
+            counts[index(value)]++;
+            total++;
+            max = Math.max(max, value);
+        }
+        
+        // The largest value in the bucket holding the given fraction of samples
+        long percentile(double fraction) {
+            long target = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target && seen > 0) {
+                    return Math.min(highestIn(i), max);
+                }
+            }
+            return 0;
+        }
+        
+        long max() {
+            return max;
+        }
+        
+        private static int index(long value) {
+            if (value < 2 * SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - 4;
+            return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+        }
+        
+        private static long highestIn(int index) {
+            if (index < 2 * SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / SUB_BUCKETS - 1;
+            long top = index % SUB_BUCKETS + SUB_BUCKETS;
+            return ((top + 1) << shift) - 1;
+        }
+    }
+    
+    public static void main(String[] args) {
+        try {
+            if (BotSwarm.BOTS > 0) {
+                BotSwarm.run();
+                return;
+            }
+            
+            // Create necessary directories
+            createDirectories();
+            
+            // Open log file
+            openLogFile();
+            
+            connect(true);
+            
+            // Start the message listener thread
+            Thread listenerThread = new Thread(() -> {
+                while (true) {
+                    try {
+                        if (binaryProtocol) {
+                            listenForFrames();
+                        } else {
+                            listenForLines();
+                        }
+                        return;
+                    } catch (IOException | InterruptedException e) {
+                        for (CompletableFuture<String> check : uploadChecks.values()) {
+                            check.complete(null);
+                        }
+                        // Ensure we clear file transfer status if connection is lost
+                        synchronized (transferLock) {
+                            fileTransferInProgress = false;
+                        }
+                        if (quitting) {
+                            return;
+                        }
+                        System.err.println("Connection to server lost: " + e.getMessage());
+                        if (!reconnect()) {
+                            System.err.println("Giving up on the server. Restart the client to connect again.");
+                            return;
+                        }
+                    }
+                }
+            });
+            listenerThread.start();
+            
+            // Start command processor thread
+            Thread commandThread = new Thread(() -> {
+                try {
+                    while (true) {
+                        Command cmd = commandQueue.take();  // This blocks until a command is available
+                        
+                        // Set transfer flag with synchronization
+                        synchronized (transferLock) {
+                            fileTransferInProgress = true;
+                        }
+                        
+                        try {
+                            switch (cmd.type) {
+                                case SEND_FILE:
+                                    sendFile();
+                                    break;
+                                case RECEIVE_FILE:
+                                    receiveFile("SENDING_FILE_RANGE".equals(cmd.message));
+                                    break;
+                                case SEND_VOICE:
+                                    sendVoiceMessage();
+                                    break;
+                                case RECEIVE_VOICE:
+                                    receiveVoiceMessage();
+                                    break;
+                                default:
+                                    // Handle other command types if needed
+                                    break;
+                            }
+                        } catch (Exception e) {
+                            System.err.println("Error in command processor: " + e.getMessage());
+                            e.printStackTrace();
+                        } finally {
+                            // Always reset transfer flag with synchronization
+                            synchronized (transferLock) {
+                                fileTransferInProgress = false;
+                            }
+                        }
+                    }
+                } catch (Exception e) {
+                    System.err.println("Fatal error in command processor: " + e.getMessage());
+                    e.printStackTrace();
+                    // Ensure we clear file transfer status if thread fails
+                    synchronized (transferLock) {
+                        fileTransferInProgress = false;
+                    }
+                }
+            });
+            commandThread.start();
+            
+            // Print welcome message and instructions
+            System.out.println("Connected to chat server. Type /help for available commands.");
+            logMessage("Connected to chat server at " + SERVER_ADDRESS + ":" + SERVER_PORT);
+            
+            // Main input loop
+            Scanner userInput = new Scanner(System.in);
+            try {
+                while (true) {
+                    String message = userInput.nextLine();
+                    
+                    // Check transfer status with synchronization
+                    boolean transferActive;
+                    synchronized (transferLock) {
+                        transferActive = fileTransferInProgress;
+                    }
+                    
+                    // Skip user input if a file transfer is in progress
+                    if (transferActive && !message.equals("/stop")) {
+                        System.out.println("File transfer in progress. Please wait...");
+                        continue;
+                    }
+                    
+                    if ("/quit".equals(message)) {
+                        logMessage("Disconnecting from server");
+                        quitting = true;
+                        if (resumeToken != null) {
+                            // Tell the server not to hold our session for a resume
+                            sendControl("BYE");
+                        }
+                        break;
+                    }
+                    
+                    // Log outgoing message
+                    logMessage("YOU: " + message);
+                    
+                    if (reconnecting) {
+                        System.out.println("Not connected; reconnecting to the server. Message not sent.");
+                        continue;
+                    }
+                    if (!loggedIn) {
+                        loginName = message;
+                    }
+                    
+                    if (message.startsWith("/getfile ")) {
+                        sendLine(resumeRequest(message.substring("/getfile ".length()).trim()));
+                        continue;
+                    }
+                    
+                    // Binary protocol uploads run in the background on their own stream
+                    if (binaryProtocol && (message.equals("/sendfile") || message.startsWith("/sendfile "))) {
+                        String path = message.substring("/sendfile".length()).trim();
+                        if (path.isEmpty()) {
+                            System.out.println("Usage: /sendfile [Path]");
+                        } else {
+                            startUpload(new File(path), false);
+                        }
+                        continue;
+                    }
+                    if (binaryProtocol && "/sendvoice".equals(message)) {
+                        File recording = findLatestRecording();
+                        if (recording == null) {
+                            System.out.println("No recordings found. Record a voice message first with /record.");
+                        } else {
+                            startUpload(recording, true);
+                        }
+                        continue;
+                    }
+                    
+                    // Check for voice recording command
+                    if ("/record".equals(message)) {
+                        if (!isRecording) {
+                            System.out.println("Recording voice message... Type /stop to finish recording.");
+                            startRecording();
+                        } else {
+                            System.out.println("Already recording. Type /stop to finish recording.");
+                        }
+                    } else if ("/stop".equals(message)) {
+                        if (isRecording) {
+                            stopRecording();
+                            System.out.println("Recording stopped. Use /sendvoice to send the voice message.");
+                        } else {
+                            System.out.println("Not currently recording.");
+                        }
+                    } else {
+                        // Send the message to the server
+                        sendLine(message);
+                    }
+                }
+            } finally {
+                // Close resources
+                quitting = true;
+                socket.close();
+                userInput.close();
+                closeLogFile();
+            }
+            
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Error connecting to server: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+    
+    // Opens the connection and sets up the streams every other method writes to
+    private static void connect(boolean showPrompt) throws IOException {
+        Socket opened = new Socket(SERVER_ADDRESS, SERVER_PORT);
+        socket = opened;
+        
+        InputStream socketIn = opened.getInputStream();
+        binaryProtocol = negotiateProtocol(socketIn, showPrompt);
+        
+        synchronized (writeLock) {
+            in = new BufferedReader(
+                new InputStreamReader(socketIn));
+            out = new PrintWriter(opened.getOutputStream(), true);
+            dataOut = new DataOutputStream(opened.getOutputStream());
+            dataIn = new DataInputStream(binaryProtocol ? new BufferedInputStream(socketIn) : socketIn);
+        }
+    }
+    
+    // Listener thread, after the connection was lost: retries with jittered exponential
+    // backoff, then asks for our session back with whatever the room said since the last
+    // message we saw, or logs in again and rejoins our room when there is no session to
+    // resume. Returns false if we never got logged in or the attempts ran out.
+    private static boolean reconnect() {
+        if (!loggedIn || RECONNECT_ATTEMPTS <= 0) {
+            return false;
+        }
+        reconnecting = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+        for (int tries = 0; tries < RECONNECT_ATTEMPTS && !quitting; tries++) {
+            long ceiling = Math.min(RECONNECT_MAX_MILLIS, RECONNECT_BASE_MILLIS << Math.min(reconnectAttempt, 30));
+            long delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+            reconnectAttempt++;
+            System.out.println("Reconnecting in " + delay + " ms (attempt " + (tries + 1) + " of "
+                             + RECONNECT_ATTEMPTS + ")...");
+            try {
+                Thread.sleep(delay);
+                connect(false);
+                String token = resumeToken;
+                reconnecting = false;
+                if (binaryProtocol && protocolVersion >= 3 && token != null && currentRoom != null) {
+                    sendControl("RESUME", sessionUser, token, currentRoom, String.valueOf(lastSeq));
+                    logMessage("Resuming session in " + currentRoom + " after seq " + lastSeq);
+                } else {
+                    logInAgain();
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (IOException e) {
+                reconnecting = true;
+                System.err.println("Reconnect failed: " + e.getMessage());
+            }
+        }
+        return false;
+    }
+    
+    // Sends the name we last logged in with and rejoins the room we were in. Counts as
+    // logged in once the server accepts the name, so a refused name is not retried forever.
+    private static void logInAgain() {
+        String name = sessionUser != null ? sessionUser : loginName;
+        String room = currentRoom;
+        loggedIn = false;
+        loginName = name;
+        logMessage("Logging in again as " + name);
+        sendLine(name);
+        if (room != null && !DEFAULT_ROOM.equals(room)) {
+            sendLine("/join " + room);
+        }
+    }
+    
+    // The server accepted our name: it lists the rooms right after
+    private static void onLoggedIn() {
+        if (sessionUser == null) {
+            sessionUser = loginName;
+        }
+        if (currentRoom == null) {
+            currentRoom = DEFAULT_ROOM;
+        }
+        loggedIn = true;
+        reconnectAttempt = 0;
+    }
+    
+    // Reads the username prompt and, unless the legacy text protocol was requested, offers
+    // the binary protocol in place of a username. Reads byte by byte so nothing that
+    // follows the handshake is buffered away from the frame reader.
+    private static boolean negotiateProtocol(InputStream socketIn, boolean showPrompt) throws IOException {
+        String prompt = readRawLine(socketIn);
+        if (prompt == null) {
+            throw new EOFException("Server closed the connection");
+        }
+        if (showPrompt) {
+            System.out.println(prompt);
+        }
+        logMessage("SERVER: " + prompt);
+        if ("text".equalsIgnoreCase(PROTOCOL)) {
+            return false;
+        }
+        
+        OutputStream socketOut = socket.getOutputStream();
+        socketOut.write((HELLO_PREFIX + PROTOCOL_VERSION + "\n").getBytes(StandardCharsets.UTF_8));
+        socketOut.flush();
+        
+        String reply = readRawLine(socketIn);
+        if (reply != null && reply.startsWith(HELLO_PREFIX)) {
+            protocolVersion = Integer.parseInt(reply.substring(HELLO_PREFIX.length()).trim());
+            logMessage("Using binary protocol version " + protocolVersion);
+            return true;
+        }
+        System.out.println(reply);
+        System.err.println("Server does not support the binary protocol; reconnect with -Dchat.protocol=text");
+        return false;
+    }
+    
+    private static String readRawLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = input.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+    
+    private static void listenForLines() throws IOException, InterruptedException {
+        String message;
+        while ((message = in.readLine()) != null) {
+            System.out.println(message);
+            logMessage("SERVER: " + message);
+            trackSession(message);
+            
+            // Queue special commands instead of handling them directly
+            if (message.equals("READY_TO_RECEIVE_FILE")) {
+                commandQueue.put(new Command(CommandType.SEND_FILE, message));
+            } else if (message.equals("SENDING_FILE") || message.equals("SENDING_FILE_RANGE")) {
+                commandQueue.put(new Command(CommandType.RECEIVE_FILE, message));
+            } else if (message.equals("READY_TO_RECEIVE_VOICE")) {
+                commandQueue.put(new Command(CommandType.SEND_VOICE, message));
+            } else if (message.equals("SENDING_VOICE")) {
+                commandQueue.put(new Command(CommandType.RECEIVE_VOICE, message));
+            }
+        }
+    }
+    
+    private static void listenForFrames() throws IOException, InterruptedException {
+        while (true) {
+            byte type = dataIn.readByte();
+            byte flags = dataIn.readByte();
+            int streamId = dataIn.readInt();
+            byte[] payload = new byte[dataIn.readInt()];
+            dataIn.readFully(payload);
+            
+            if (type == FRAME_CHAT && (flags & FLAG_SEQUENCED) != 0) {
+                lastSeq = Math.max(lastSeq, ByteBuffer.wrap(payload).getLong());
+                String message = new String(payload, 8, payload.length - 8, StandardCharsets.UTF_8);
+                System.out.println(message);
+                logMessage("SERVER: " + message);
+            } else if (type == FRAME_CHAT) {
+                String message = new String(payload, StandardCharsets.UTF_8);
+                System.out.println(message);
+                logMessage("SERVER: " + message);
+                trackSession(message);
+            } else if (type == FRAME_CONTROL && streamId != 0) {
+                // The server's answer to an upload that announced its digest
+                CompletableFuture<String> check = uploadChecks.get(streamId);
+                if (check != null) {
+                    check.complete(new String(payload, StandardCharsets.UTF_8));
+                }
+            } else if (type == FRAME_CONTROL) {
+                handleControl(new String(payload, StandardCharsets.UTF_8).split("\n"));
+            } else if (type == FRAME_STREAM_OPEN) {
+                openDownload(streamId, new String(payload, StandardCharsets.UTF_8).split("\n"));
+            } else if (type == FRAME_DATA) {
+                receiveData(streamId, payload, (flags & FLAG_END_STREAM) != 0);
+            } else if (type == FRAME_STREAM_RESET) {
+                Download download = downloads.remove(streamId);
+                if (download != null) {
+                    download.fileOut.close();
+                    if (download.offset == 0) {
+                        new File(download.path).delete();
+                    }
+                    System.out.println("Download cancelled by server: " + download.path);
+                } else {
+                    // One of our uploads was refused; its thread stops at the next chunk
+                    resetStreams.add(streamId);
+                    CompletableFuture<String> check = uploadChecks.get(streamId);
+                    if (check != null) {
+                        check.complete(null);
+                    }
+                }
+            }
+        }
+    }
+    
+    // Before version 3 the replies themselves say when we are logged in and where
+    private static void trackSession(String message) {
+        if (!loggedIn && "Available rooms:".equals(message)) {
+            onLoggedIn();
+        } else if (message.startsWith("Joined room: ")) {
+            currentRoom = message.substring("Joined room: ".length());
+        }
+    }
+    
+    private static void handleControl(String[] fields) throws InterruptedException {
+        logMessage("SERVER: " + String.join(" ", fields));
+        if ("READY_TO_RECEIVE_FILE".equals(fields[0])) {
+            commandQueue.put(new Command(CommandType.SEND_FILE, fields[0]));
+        } else if ("READY_TO_RECEIVE_VOICE".equals(fields[0])) {
+            commandQueue.put(new Command(CommandType.SEND_VOICE, fields[0]));
+        } else if ("RESUME_TOKEN".equals(fields[0]) && fields.length == 3) {
+            sessionUser = fields[1];
+            resumeToken = fields[2];
+        } else if ("JOINED".equals(fields[0]) && fields.length == 3) {
+            currentRoom = fields[1];
+            lastSeq = Long.parseLong(fields[2]);
+        } else if ("RESUMED".equals(fields[0])) {
+            onLoggedIn();
+            String missed = fields.length > 2 ? fields[2] : "0";
+            System.out.println("Reconnected to " + (fields.length > 1 ? fields[1] : "the server") + " ("
+                             + missed + " missed messages)");
+        } else if ("RESUME_FAILED".equals(fields[0])) {
+            resumeToken = null;
+            System.out.println("Reconnected; the session had expired, logging in again");
+            logInAgain();
+        }
+    }
+    
+    // Fields: FILE|VOICE, name, size, then for files offset, total size and SHA-256
+    private static void openDownload(int streamId, String[] fields) throws IOException {
+        boolean voice = "VOICE".equals(fields[0]);
+        long size = Long.parseLong(fields[2]);
+        long offset = fields.length > 3 ? Long.parseLong(fields[3]) : 0;
+        long total = fields.length > 4 ? Long.parseLong(fields[4]) : size;
+        String sha256 = fields.length > 5 ? fields[5] : null;
+        if (!voice) {
+            String storedName = pendingProbes.remove(fields[1]);
+            if (storedName != null && size == 0 && sha256 != null) {
+                startParallelDownload(storedName, fields[1], offset, total, sha256, fields.length > 6 ? fields[6] : null);
+                return;
+            }
+        }
+        String path;
+        if (voice) {
+            Files.createDirectories(Paths.get(VOICE_RECORDINGS_DIR));
+            path = VOICE_RECORDINGS_DIR + File.separator + "received_" + System.currentTimeMillis() + ".wav";
+            System.out.println("Receiving voice message: " + formatFileSize(size));
+        } else {
+            Files.createDirectories(Paths.get(DOWNLOADS_DIR));
+            path = DOWNLOADS_DIR + File.separator + fields[1];
+            if (offset > 0) {
+                System.out.println("Resuming file: " + fields[1] + " from " + formatFileSize(offset)
+                                 + " (" + formatFileSize(size) + " left)");
+            } else {
+                System.out.println("Receiving file: " + fields[1] + " (" + formatFileSize(size) + ")");
+            }
+        }
+        logMessage("Receiving " + (voice ? "voice message" : "file") + ": " + path + " (" + formatFileSize(size) + ")");
+        downloads.put(streamId, new Download(path, offset, size, total, sha256, voice));
+    }
+    
+    private static void receiveData(int streamId, byte[] payload, boolean last) throws IOException {
+        Download download = downloads.get(streamId);
+        if (download == null) {
+            return;
+        }
+        download.write(payload, payload.length);
+        
+        if (!download.voice && download.size > 0) {
+            int newPercentCompleted = (int) ((download.received * 100) / download.size);
+            if (newPercentCompleted >= download.percentCompleted + 10) {
+                download.percentCompleted = newPercentCompleted;
+                System.out.println("Download progress: " + download.percentCompleted + "%");
+            }
+        }
+        
+        if (last) {
+            downloads.remove(streamId);
+            download.fileOut.close();
+            if (download.voice) {
+                System.out.println("Voice message downloaded successfully");
+                logMessage("Voice message downloaded successfully");
+                // Play on a separate thread so the listener keeps reading chat
+                File audioFile = new File(download.path);
+                new Thread(() -> playAudio(audioFile)).start();
+            } else if (verifyDownload(download.path, download.reachesEnd() ? download.sha256 : null)) {
+                System.out.println("File downloaded successfully to: " + download.path);
+                logMessage("File downloaded successfully: " + download.path);
+            }
+        }
+    }
+    
+    // Turns "/getfile name" into a resume request when part of the file is already in
+    // downloads/: the server checks our prefix against its digest before skipping it.
+    // With the binary protocol it asks for an empty range first; the reply carries the
+    // size and a download ticket, and startParallelDownload splits the rest across
+    // several connections.
+    // Anything with arguments beyond a bare name is passed through unchanged.
+    private static String resumeRequest(String storedName) {
+        String request = "/getfile " + storedName;
+        if (storedName.isEmpty() || storedName.contains(" ")) {
+            return request;
+        }
+        File partial = new File(DOWNLOADS_DIR, originalName(storedName));
+        long have = partial.isFile() ? partial.length() : 0;
+        String prefixCheck = "";
+        if (have > 0) {
+            try {
+                prefixCheck = " sha256=" + sha256(partial, have);
+            } catch (IOException e) {
+                System.err.println("Could not read partial download " + partial + ": " + e.getMessage());
+                have = 0;
+            }
+        }
+        if (binaryProtocol && DOWNLOAD_STREAMS > 1) {
+            pendingProbes.put(originalName(storedName), storedName);
+            return request + " " + have + " 0" + prefixCheck;
+        }
+        return have > 0 ? request + " " + have + prefixCheck : request;
+    }
+    
+    // Runs on the listener thread once a size probe comes back. A server that sent no
+    // ticket gets the rest of the file asked for on this connection instead.
+    private static void startParallelDownload(String storedName, String name, long offset, long total,
+                                              String sha256, String ticket) throws IOException {
+        String path = DOWNLOADS_DIR + File.separator + name;
+        if (parallelDownloads.containsKey(path)) {
+            System.out.println("Already downloading " + name);
+            return;
+        }
+        long remaining = total - offset;
+        if (remaining == 0) {
+            // Nothing left to fetch (an empty file still has to exist)
+            new File(path).createNewFile();
+            if (verifyDownload(path, sha256)) {
+                System.out.println("File already downloaded: " + path);
+            }
+            return;
+        }
+        if (ticket == null) {
+            sendLine("/getfile " + storedName + " " + offset);
+            return;
+        }
+        int count = (int) Math.max(1, Math.min(DOWNLOAD_STREAMS, remaining / MIN_PART_SIZE));
+        ParallelDownload group = new ParallelDownload(path, storedName, offset, total, sha256, ticket, count);
+        parallelDownloads.put(path, group);
+        if (offset > 0) {
+            System.out.println("Resuming file: " + name + " from " + formatFileSize(offset)
+                             + " (" + formatFileSize(remaining) + " left)");
+        } else {
+            System.out.println("Receiving file: " + name + " (" + formatFileSize(total) + ")");
+        }
+        logMessage("Receiving file: " + path + " (" + formatFileSize(remaining) + " in " + count + " parts)");
+        for (int i = 0; i < count; i++) {
+            int part = i;
+            Thread fetcher = new Thread(() -> fetchPart(group, part), "download-part-" + part);
+            fetcher.setDaemon(true);
+            fetcher.start();
+        }
+    }
+    
+    // Download part thread: opens a connection of its own, presents the ticket with the
+    // range in place of a username and reads that range's frames until END_STREAM
+    private static void fetchPart(ParallelDownload group, int part) {
+        Download download = group.parts[part];
+        try (Socket connection = new Socket(SERVER_ADDRESS, SERVER_PORT)) {
+            synchronized (group) {
+                if (group.failed) {
+                    return;
+                }
+                group.sockets[part] = connection;
+            }
+            InputStream socketIn = connection.getInputStream();
+            OutputStream socketOut = connection.getOutputStream();
+            readRawLine(socketIn); // Username prompt
+            socketOut.write((HELLO_PREFIX + PROTOCOL_VERSION + "\n").getBytes(StandardCharsets.UTF_8));
+            socketOut.flush();
+            String reply = readRawLine(socketIn);
+            if (reply == null || !reply.startsWith(HELLO_PREFIX)) {
+                throw new IOException("Server refused the binary protocol");
+            }
+            byte[] request = ("FETCH\n" + group.ticket + "\n" + download.offset + "\n" + download.size)
+                .getBytes(StandardCharsets.UTF_8);
+            DataOutputStream partOut = new DataOutputStream(new BufferedOutputStream(socketOut));
+            partOut.writeByte(FRAME_CONTROL);
+            partOut.writeByte(0);
+            partOut.writeInt(0);
+            partOut.writeInt(request.length);
+            partOut.write(request);
+            partOut.flush();
+            
+            DataInputStream partIn = new DataInputStream(new BufferedInputStream(socketIn));
+            byte[] payload = new byte[UPLOAD_CHUNK_SIZE];
+            boolean last = false;
+            while (!last) {
+                byte type = partIn.readByte();
+                byte flags = partIn.readByte();
+                partIn.readInt(); // Stream id
+                int length = partIn.readInt();
+                if (length > payload.length) {
+                    payload = new byte[length];
+                }
+                partIn.readFully(payload, 0, length);
+                if (type == FRAME_DATA) {
+                    group.write(download, payload, length);
+                    last = (flags & FLAG_END_STREAM) != 0;
+                } else if (type == FRAME_STREAM_RESET) {
+                    throw new IOException("cancelled by server");
+                } else if (type == FRAME_CHAT) {
+                    String message = new String(payload, 0, length, StandardCharsets.UTF_8);
+                    if (message.startsWith("ERROR") || message.startsWith("Error")) {
+                        throw new IOException(message);
+                    }
+                }
+            }
+            if (download.received != download.size) {
+                throw new IOException("range ended early");
+            }
+        } catch (IOException e) {
+            if (!group.failed) {
+                System.err.println("Download of " + group.path + " failed: " + e.getMessage());
+            }
+            failParallelDownload(group);
+            return;
+        }
+        partDone(group);
+    }
+    
+    private static void partDone(ParallelDownload group) {
+        synchronized (group) {
+            if (group.failed || ++group.partsDone < group.parts.length) {
+                return;
+            }
+        }
+        parallelDownloads.remove(group.path, group);
+        try {
+            group.fileOut.close();
+            if (verifyDownload(group.path, group.sha256)) {
+                System.out.println("File downloaded successfully to: " + group.path);
+                logMessage("File downloaded successfully: " + group.path);
+            }
+        } catch (IOException e) {
+            System.err.println("Error finishing download " + group.path + ": " + e.getMessage());
+        }
+    }
+    
+    // One range failed: stop the rest and keep only the contiguous prefix
+    private static void failParallelDownload(ParallelDownload group) {
+        parallelDownloads.remove(group.path, group);
+        group.abandon();
+    }
+    
+    // Stored names are "<millis>_<original name>"
+    private static String originalName(String storedName) {
+        int separator = storedName.indexOf('_');
+        return separator >= 0 ? storedName.substring(separator + 1) : storedName;
+    }
+    
+    // Checks a finished download against the server's digest; a mismatch deletes the
+    // file so the next /getfile starts clean
+    private static boolean verifyDownload(String path, String expectedSha256) throws IOException {
+        if (expectedSha256 == null) {
+            return true;
+        }
+        File file = new File(path);
+        if (expectedSha256.equalsIgnoreCase(sha256(file, file.length()))) {
+            return true;
+        }
+        file.delete();
+        System.err.println("Checksum mismatch for " + path + "; the file was deleted, please download it again");
+        logMessage("Checksum mismatch for " + path);
+        return false;
+    }
+    
+    private static String sha256(File file, long length) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (InputStream fileIn = new FileInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            long remaining = length;
+            int bytesRead;
+            while (remaining > 0 && (bytesRead = fileIn.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                digest.update(buffer, 0, bytesRead);
+                remaining -= bytesRead;
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+    
+    private static void startUpload(File file, boolean voice) {
+        if (!file.exists() || !file.isFile()) {
+            System.out.println("File not found: " + file.getPath());
+            return;
+        }
+        int streamId = nextStreamId.getAndAdd(2);
+        Thread uploadThread = new Thread(() -> uploadStream(streamId, file, voice), "upload-" + streamId);
+        uploadThread.start();
+    }
+    
+    // Sends the file in chunks; each chunk is its own frame, so chat typed meanwhile
+    // goes out between chunks instead of waiting for the whole upload. From protocol
+    // version 2 a file first offers its SHA-256, and content the server already holds
+    // is shared without sending it again.
+    private static void uploadStream(int streamId, File file, boolean voice) {
+        long fileSize = file.length();
+        long recordingDuration = voice ? getAudioDuration(file) : 0;
+        String header = (voice ? "VOICE" : "FILE") + "\n" + file.getName() + "\n" + fileSize
+                      + (voice ? "\n" + recordingDuration : "");
+        boolean checkFirst = !voice && protocolVersion >= 2;
+        if (checkFirst) {
+            try {
+                header += "\n0\n" + sha256(file, fileSize);
+            } catch (IOException e) {
+                System.err.println("Error reading file: " + e.getMessage());
+                return;
+            }
+        }
+        
+        if (voice) {
+            System.out.println("Sending voice message: " + formatFileSize(fileSize) + 
+                             " (Duration: " + (recordingDuration / 1000) + " seconds)");
+        } else {
+            System.out.println("Sending file: " + file.getName() + " (" + formatFileSize(fileSize) + ")");
+        }
+        logMessage("Sending " + (voice ? "voice message" : "file") + ": " + file.getName() + " (" + formatFileSize(fileSize) + ")");
+        
+        try (FileInputStream fileIn = new FileInputStream(file)) {
+            byte[] headerBytes = header.getBytes(StandardCharsets.UTF_8);
+            if (checkFirst) {
+                uploadChecks.put(streamId, new CompletableFuture<>());
+            }
+            writeFrame(FRAME_STREAM_OPEN, 0, streamId, headerBytes, headerBytes.length);
+            if (checkFirst) {
+                String answer = awaitUploadCheck(streamId);
+                if ("UPLOAD_COMPLETE".equals(answer)) {
+                    System.out.println("File already on the server; shared without uploading: " + file.getName());
+                    logMessage("File shared without uploading: " + file.getName());
+                    return;
+                } else if (!"UPLOAD_CONTINUE".equals(answer)) {
+                    resetStreams.remove(streamId);
+                    System.out.println("Upload of " + file.getName() + " was refused by the server");
+                    return;
+                }
+            }
+            
+            byte[] buffer = new byte[UPLOAD_CHUNK_SIZE];
+            int bytesRead;
+            long totalBytesSent = 0;
+            int percentCompleted = 0;
+            while (totalBytesSent < fileSize && (bytesRead = fileIn.read(buffer)) != -1) {
+                if (resetStreams.remove(streamId)) {
+                    System.out.println("Upload of " + file.getName() + " was refused by the server");
+                    return;
+                }
+                totalBytesSent += bytesRead;
+                writeFrame(FRAME_DATA, totalBytesSent >= fileSize ? FLAG_END_STREAM : 0, streamId, buffer, bytesRead);
+                
+                int newPercentCompleted = (int) ((totalBytesSent * 100) / fileSize);
+                if (!voice && newPercentCompleted >= percentCompleted + 10) {
+                    percentCompleted = newPercentCompleted;
+                    System.out.println("Upload progress: " + percentCompleted + "%");
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error sending " + (voice ? "voice message" : "file") + ": " + e.getMessage());
+            e.printStackTrace();
+            return;
+        }
+        
+        System.out.println(voice ? "Voice message sent successfully" : "File sent successfully");
+        logMessage((voice ? "Voice message" : "File") + " sent successfully: " + file.getName());
+    }
+    
+    private static String awaitUploadCheck(int streamId) throws IOException {
+        try {
+            return uploadChecks.get(streamId).get(UPLOAD_CHECK_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload interrupted");
+        } catch (Exception e) {
+            throw new IOException("No answer from the server to the upload request");
+        } finally {
+            uploadChecks.remove(streamId);
+        }
+    }
+    
+    // A line typed by the user: chat or a server command
+    private static void sendLine(String message) {
+        if (!binaryProtocol) {
+            out.println(message);
+            return;
+        }
+        try {
+            byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+            writeFrame(message.startsWith("/") ? FRAME_COMMAND : FRAME_CHAT, 0, 0, payload, payload.length);
+        } catch (IOException e) {
+            System.err.println("Error sending message: " + e.getMessage());
+        }
+    }
+    
+    // Answers to a server control request (transfer headers and cancellations)
+    private static void sendControl(String... fields) throws IOException {
+        if (!binaryProtocol) {
+            for (String field : fields) {
+                out.println(field);
+            }
+            return;
+        }
+        byte[] payload = String.join("\n", fields).getBytes(StandardCharsets.UTF_8);
+        writeFrame(FRAME_CONTROL, 0, 0, payload, payload.length);
+    }
+    
+    // File and voice bytes: raw in text mode, DATA frames in binary mode
+    private static void sendData(byte[] buffer, int length, boolean last) throws IOException {
+        if (!binaryProtocol) {
+            dataOut.write(buffer, 0, length);
+            return;
+        }
+        writeFrame(FRAME_DATA, last ? FLAG_END_STREAM : 0, 0, buffer, length);
+    }
+    
+    private static void writeFrame(byte type, int flags, int streamId, byte[] payload, int length) throws IOException {
+        byte[] frame = new byte[FRAME_HEADER_SIZE + length];
+        frame[0] = type;
+        frame[1] = (byte) flags;
+        frame[2] = (byte) (streamId >>> 24);
+        frame[3] = (byte) (streamId >>> 16);
+        frame[4] = (byte) (streamId >>> 8);
+        frame[5] = (byte) streamId;
+        frame[6] = (byte) (length >>> 24);
+        frame[7] = (byte) (length >>> 16);
+        frame[8] = (byte) (length >>> 8);
+        frame[9] = (byte) length;
+        System.arraycopy(payload, 0, frame, FRAME_HEADER_SIZE, length);
+        synchronized (writeLock) {
+            dataOut.write(frame);
+            dataOut.flush();
+        }
+    }
+    
+    private static void createDirectories() {
+        try {
+            Files.createDirectories(Paths.get(CLIENT_LOGS_DIR));
+            Files.createDirectories(Paths.get(DOWNLOADS_DIR));
+            Files.createDirectories(Paths.get(VOICE_RECORDINGS_DIR));
+            System.out.println("Created necessary directories for client operation");
+        } catch (IOException e) {
+            System.err.println("Error creating directories: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+    
+    private static void openLogFile() {
+        try {
+            String logFileName = CLIENT_LOGS_DIR + File.separator + "chat_" + 
+                               LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss")) + ".log";
+            logWriter = new PrintWriter(new FileWriter(logFileName, true), true);
+            logMessage("--- Chat session started at " + 
+                     LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")) + " ---");
+        } catch (IOException e) {
+            System.err.println("Error creating log file: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+    
+    private static void closeLogFile() {
+        if (logWriter != null) {
+            logMessage("--- Chat session ended at " + 
+                     LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")) + " ---");
+            logWriter.close();
+        }
+    }
+    
+    private static void logMessage(String message) {
+        if (logWriter != null) {
+            logWriter.println("[" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss")) + "] " + message);
+        }
+    }
+    
+    private static void sendFile() throws IOException {
+        // Use a separate scanner to prevent conflicts with the main input loop
+        Scanner fileScanner = new Scanner(System.in);
+        System.out.println("Enter the path to the file you want to send (or type 'cancel' to abort):");
+        String filePath = fileScanner.nextLine();
+        
+        // Allow user to cancel the operation
+        if ("cancel".equalsIgnoreCase(filePath)) {
+            System.out.println("File transfer cancelled by user.");
+            sendControl("FILE_TRANSFER_CANCELLED");
+            return;
+        }
+        
+        File file = new File(filePath);
+        if (!file.exists() || !file.isFile()) {
+            System.out.println("File not found: " + filePath);
+            // Send FILE_TRANSFER_CANCELLED to server to inform it that no file will be sent
+            sendControl("FILE_TRANSFER_CANCELLED");
+            return;
+        }
+        
+        long fileSize = file.length();
+        String fileName = file.getName();
+        
+        // Send file name and size
+        sendControl(fileName, String.valueOf(fileSize));
+        
+        System.out.println("Sending file: " + fileName + " (" + formatFileSize(fileSize) + ")");
+        logMessage("Sending file: " + fileName + " (" + formatFileSize(fileSize) + ")");
+        
+        try (FileInputStream fileIn = new FileInputStream(file)) {
+            byte[] buffer = new byte[8192];
+            int bytesRead;
+            long totalBytesSent = 0;
+            int percentCompleted = 0;
+            
+            while ((bytesRead = fileIn.read(buffer)) != -1) {
+                sendData(buffer, bytesRead, totalBytesSent + bytesRead >= fileSize);
+                totalBytesSent += bytesRead;
+                
+                int newPercentCompleted = (int) ((totalBytesSent * 100) / fileSize);
+                if (newPercentCompleted >= percentCompleted + 10) {
+                    percentCompleted = newPercentCompleted;
+                    System.out.println("Upload progress: " + percentCompleted + "%");
+                }
+            }
+            dataOut.flush();
+        } catch (IOException e) {
+            System.err.println("Error sending file: " + e.getMessage());
+            e.printStackTrace();
+            throw e; // Rethrow to ensure finally block in caller handles cleanup
+        }
+        
+        System.out.println("File sent successfully");
+        logMessage("File sent successfully: " + fileName);
+    }
+    
+    // SENDING_FILE is followed by name and size; SENDING_FILE_RANGE by name, offset,
+    // length, total size and SHA-256
+    private static void receiveFile(boolean ranged) throws IOException {
+        String fileName = in.readLine();
+        long offset = ranged ? Long.parseLong(in.readLine()) : 0;
+        
+        // Handle potential non-numeric content safely
+        String fileSizeStr = in.readLine();
+        long fileSize;
+        try {
+            fileSize = Long.parseLong(fileSizeStr);
+        } catch (NumberFormatException e) {
+            System.err.println("Error parsing file size: " + fileSizeStr);
+            logMessage("Error parsing file size: " + fileSizeStr);
+            System.err.println("Content of file may have been corrupted. Trying to save anyway.");
+            fileSize = 1024 * 1024; // Default to 1MB as a fallback
+        }
+        long total = ranged ? Long.parseLong(in.readLine()) : fileSize;
+        String sha256 = ranged ? in.readLine() : null;
+        
+        // Ensure the downloads directory exists
+        Files.createDirectories(Paths.get(DOWNLOADS_DIR));
+        String downloadPath = DOWNLOADS_DIR + File.separator + fileName;
+        
+        System.out.println("Receiving file: " + fileName + " (" + formatFileSize(fileSize) + ")");
+        logMessage("Receiving file: " + fileName + " (" + formatFileSize(fileSize) + ")");
+        
+        Download download = new Download(downloadPath, offset, fileSize, total, sha256, false);
+        try (download) {
+            byte[] buffer = new byte[8192];
+            int bytesRead;
+            long totalBytesRead = 0;
+            int percentCompleted = 0;
+            
+            while (totalBytesRead < fileSize) {
+                try {
+                    int remaining = (int) Math.min(buffer.length, fileSize - totalBytesRead);
+                    bytesRead = dataIn.read(buffer, 0, remaining);
+                    if (bytesRead == -1) break;
+                    
+                    download.write(buffer, bytesRead);
+                    totalBytesRead += bytesRead;
+                    
+                    int newPercentCompleted = (int) ((totalBytesRead * 100) / fileSize);
+                    if (newPercentCompleted >= percentCompleted + 10) {
+                        percentCompleted = newPercentCompleted;
+                        System.out.println("Download progress: " + percentCompleted + "%");
+                    }
+                } catch (EOFException e) {
+                    System.err.println("End of file reached unexpectedly");
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Error while receiving file: " + e.getMessage());
+            e.printStackTrace();
+            throw e; // Rethrow to ensure finally block in caller handles cleanup
+        }
+        
+        if (verifyDownload(downloadPath, download.reachesEnd() ? sha256 : null)) {
+            System.out.println("File downloaded successfully to: " + downloadPath);
+            logMessage("File downloaded successfully: " + fileName);
+        }
+    }
+    
+    private static String formatFileSize(long size) {
+        final String[] units = new String[] { "B", "KB", "MB", "GB", "TB" };
+        int unitIndex = 0;
+        double fileSize = size;
+        
+        while (fileSize > 1024 && unitIndex < units.length - 1) {
+            fileSize /= 1024;
+            unitIndex++;
+        }
+        
+        return String.format("%.2f %s", fileSize, units[unitIndex]);
+    }
+    
+    private static void startRecording() {
+        try {
+            // Ensure the recordings directory exists
+            Files.createDirectories(Paths.get(VOICE_RECORDINGS_DIR));
+            
+            // Set up audio format
+            AudioFormat format = new AudioFormat(
+                AudioFormat.Encoding.PCM_SIGNED,
+                44100, // Sample rate
+                16,    // Sample size in bits
+                1,     // Channels (1 = mono)
+                2,     // Frame size in bytes
+                44100, // Frame rate
+                false  // Big-endian
+            );
+            
+            // Get and open the target data line for capturing audio
+            DataLine.Info info = new DataLine.Info(TargetDataLine.class, format);
+            if (!AudioSystem.isLineSupported(info)) {
+                System.out.println("Microphone not supported");
+                return;
+            }
+            
+            // Get the line
+            micLine = (TargetDataLine) AudioSystem.getLine(info);
+            micLine.open(format);
+            micLine.start();
+            
+            // Create a thread for recording
+            isRecording = true;
+            Thread recordingThread = new Thread(() -> {
+                try {
+                    // Create file to store recording
+                    String recordingPath = VOICE_RECORDINGS_DIR + File.separator + 
+                                         "recording_" + System.currentTimeMillis() + ".wav";
+                    
+                    AudioInputStream audioStream = new AudioInputStream(micLine);
+                    File audioFile = new File(recordingPath);
+                    
+                    // Start recording
+                    AudioSystem.write(audioStream, AudioFileFormat.Type.WAVE, audioFile);
+                } catch (IOException e) {
+                    System.err.println("Error recording audio: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            });
+            
+            recordingThread.start();
+            logMessage("Started voice recording");
+            
+        } catch (LineUnavailableException e) {
+            System.err.println("Error accessing microphone: " + e.getMessage());
+            e.printStackTrace();
+        } catch (IOException e) {
+            System.err.println("Error creating recordings directory: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+    
+    private static void stopRecording() {
+        if (micLine != null && micLine.isOpen()) {
+            isRecording = false;
+            micLine.stop();
+            micLine.close();
+            logMessage("Stopped voice recording");
+        }
+    }
+    
+    private static File findLatestRecording() throws IOException {
+        // Ensure the recordings directory exists
+        Files.createDirectories(Paths.get(VOICE_RECORDINGS_DIR));
+        
+        File recordingsDir = new File(VOICE_RECORDINGS_DIR);
+        File[] recordings = recordingsDir.listFiles((dir, name) -> name.startsWith("recording_") && name.endsWith(".wav"));
+        if (recordings == null || recordings.length == 0) {
+            return null;
+        }
+        
+        File latestRecording = recordings[0];
+        for (File recording : recordings) {
+            if (recording.lastModified() > latestRecording.lastModified()) {
+                latestRecording = recording;
+            }
+        }
+        return latestRecording;
+    }
+    
+    private static void sendVoiceMessage() throws IOException {
+        // Find the most recent recording
+        File latestRecording = findLatestRecording();
+        if (latestRecording == null) {
+            System.out.println("No recordings found. Record a voice message first with /record.");
+            sendControl("VOICE_TRANSFER_CANCELLED");
+            return;
+        }
+        
+        // Get file info
+        long fileSize = latestRecording.length();
+        long recordingDuration = getAudioDuration(latestRecording);
+        
+        // Send recording info
+        sendControl(String.valueOf(recordingDuration), String.valueOf(fileSize));
+        
+        System.out.println("Sending voice message: " + formatFileSize(fileSize) + 
+                         " (Duration: " + (recordingDuration / 1000) + " seconds)");
+        logMessage("Sending voice message (" + (recordingDuration / 1000) + " seconds)");
+        
+        // Send the actual audio data
+        try (FileInputStream fileIn = new FileInputStream(latestRecording)) {
+            byte[] buffer = new byte[8192];
+            int bytesRead;
+            long totalBytesSent = 0;
+            while ((bytesRead = fileIn.read(buffer)) != -1) {
+                sendData(buffer, bytesRead, totalBytesSent + bytesRead >= fileSize);
+                totalBytesSent += bytesRead;
+            }
+            dataOut.flush();
+        } catch (IOException e) {
+            System.err.println("Error sending voice message: " + e.getMessage());
+            e.printStackTrace();
+            throw e; // Rethrow to ensure finally block in caller handles cleanup
+        }
+        
+        System.out.println("Voice message sent successfully");
+        logMessage("Voice message sent successfully");
+    }
+    
+    private static void receiveVoiceMessage() throws IOException {
+        // Ensure the recordings directory exists
+        Files.createDirectories(Paths.get(VOICE_RECORDINGS_DIR));
+        
+        long fileSize = Long.parseLong(in.readLine());
+        
+        String downloadPath = VOICE_RECORDINGS_DIR + File.separator + 
+                            "received_" + System.currentTimeMillis() + ".wav";
+        
+        System.out.println("Receiving voice message: " + formatFileSize(fileSize));
+        logMessage("Receiving voice message: " + formatFileSize(fileSize));
+        
+        try (FileOutputStream fileOut = new FileOutputStream(downloadPath)) {
+            byte[] buffer = new byte[8192];
+            int bytesRead;
+            long totalBytesRead = 0;
+            
+            while (totalBytesRead < fileSize) {
+                int remaining = (int) Math.min(buffer.length, fileSize - totalBytesRead);
+                bytesRead = dataIn.read(buffer, 0, remaining);
+                if (bytesRead == -1) break;
+                
+                fileOut.write(buffer, 0, bytesRead);
+                totalBytesRead += bytesRead;
+            }
+        } catch (IOException e) {
+            System.err.println("Error receiving voice message: " + e.getMessage());
+            e.printStackTrace();
+            throw e; // Rethrow to ensure finally block in caller handles cleanup
+        }
+        
+        System.out.println("Voice message downloaded successfully");
+        logMessage("Voice message downloaded successfully");
+        
+        // Play the received voice message
+        playAudio(new File(downloadPath));
+    }
+    
+    private static long getAudioDuration(File audioFile) {
+        try {
+            AudioInputStream audioStream = AudioSystem.getAudioInputStream(audioFile);
+            AudioFormat format = audioStream.getFormat();
+            long frames = audioStream.getFrameLength();
+            double durationInSeconds = (frames / format.getFrameRate());
+            return (long) (durationInSeconds * 1000); // Convert to milliseconds
+        } catch (Exception e) {
+            System.err.println("Error getting audio duration: " + e.getMessage());
+            e.printStackTrace();
+            return 0;
+        }
+    }
+    
+    private static void playAudio(File audioFile) {
+        try {
+            AudioInputStream audioStream = AudioSystem.getAudioInputStream(audioFile);
+            AudioFormat format = audioStream.getFormat();
+            DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
+            
+            SourceDataLine line = (SourceDataLine) AudioSystem.getLine(info);
+            line.open(format);
+            line.start();
+            
+            System.out.println("Playing voice message...");
+            
+            byte[] buffer = new byte[4096];
+            int bytesRead = 0;
+            
+            while ((bytesRead = audioStream.read(buffer, 0, buffer.length)) != -1) {
+                line.write(buffer, 0, bytesRead);
+            }
+            
+            line.drain();
+            line.close();
+            audioStream.close();
+            
+            System.out.println("Voice message playback complete");
+        } catch (Exception e) {
+            System.err.println("Error playing audio: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+}
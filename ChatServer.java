@@ -1,38 +1,148 @@
+package echochamber;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
 import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 
 public class ChatServer {
     private static final int PORT = 5000;
-    private static final ExecutorService threadPool = Executors.newCachedThreadPool();
+    // I/O mode: "blocking" (pooled thread per client), "virtual" (virtual thread per client)
+    // or "nio" (selector event loop)
+    private static final String IO_MODE = System.getProperty("chat.io.mode", "blocking");
+    private static final int IO_THREADS = Integer.getInteger("chat.io.threads",
+                                                             Runtime.getRuntime().availableProcessors());
+    private static final int ACCEPT_BACKLOG = Integer.getInteger("chat.accept.backlog", 1024);
+    private static final ExecutorService threadPool = createClientExecutor();
     private static final Map<String, ChatRoom> chatRooms = new ConcurrentHashMap<>();
     private static final Map<String, ClientHandler> connectedClients = new ConcurrentHashMap<>();
+    // Users whose connection dropped, by name, until they resume or the grace period ends
+    private static final Map<String, SuspendedSession> suspendedSessions = new ConcurrentHashMap<>();
     private static final String SERVER_LOGS_DIR = "server_logs";
     private static final String FILE_STORAGE_DIR = "shared_files";
+    private static final String BLOB_DIR = FILE_STORAGE_DIR + File.separator + "blobs";
+    private static final String FILE_INDEX = FILE_STORAGE_DIR + File.separator + ".index";
     private static final String VOICE_STORAGE_DIR = "voice_messages";
+    private static final String VOICE_INDEX = VOICE_STORAGE_DIR + File.separator + ".index";
+    private static final MediaIndex voiceIndex = new MediaIndex(Paths.get(VOICE_INDEX));
     private static final int MAX_FILE_SIZE = 10 * 1024 * 1024; // 10 MB limit
 
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int FILE_CHUNK_SIZE = 64 * 1024;
+    private static final int WRITE_BATCH_SIZE = 16;
+    private static final int MAX_STREAMS_PER_CLIENT = 8;
+    // How long the download ticket handed out with a size probe can be redeemed for
+    // ranges of that file on extra connections; each ticket covers MAX_STREAMS_PER_CLIENT
+    private static final long DOWNLOAD_TICKET_MILLIS = Long.getLong("chat.download.ticket-ms", 60_000);
+    private static final int LIST_PAGE_SIZE = Math.max(1, Integer.getInteger("chat.list.page-size", 20));
+    // Downloads go socket-ward with FileChannel.transferTo; when off they are staged through
+    // pooled direct buffers instead
+    private static final boolean ZERO_COPY =
+        Boolean.parseBoolean(System.getProperty("chat.transfer.zero-copy", "true"));
+    private static final int DIRECT_POOL_SIZE = Integer.getInteger("chat.transfer.pool-size", 64);
+
+    // Messages each room keeps in memory for /history, and how many a joining client is
+    // shown (0 for none)
+    private static final int HISTORY_SIZE = Math.max(1, Integer.getInteger("chat.history.size", 200));
+    private static final int HISTORY_REPLAY_ON_JOIN = Integer.getInteger("chat.history.replay-on-join", 0);
+    private static final int HISTORY_DEFAULT_COUNT = 20;
+    // Longer /history requests are read from the room's message store
+    private static final int HISTORY_MAX_COUNT = 1000;
+    // How long a dropped binary client's session is held for it to resume (0 disables
+    // resuming), and how many missed messages a resume replays at most
+    private static final long RESUME_GRACE_MILLIS = Long.getLong("chat.resume.grace-ms", 30_000);
+    private static final int RESUME_MAX_MESSAGES = Integer.getInteger("chat.resume.max-messages", 1000);
+    // Whispers to known users who are offline wait in per-recipient files of at most this size
+    private static final String MAILBOX_DIR = "mailboxes";
+    private static final long MAILBOX_MAX_BYTES = Long.getLong("chat.mailbox.max-bytes", 256 * 1024);
+
+    // Room logs are written by a background thread that flushes every LOG_FLUSH_MILLIS,
+    // optionally forcing each flush to disk
+    private static final long LOG_FLUSH_MILLIS = Math.max(1, Long.getLong("chat.log.flush-ms", 100));
+    private static final boolean LOG_FSYNC = Boolean.getBoolean("chat.log.fsync");
+    private static final int LOG_BUFFER_SIZE = 64 * 1024;
+    // Room log segments roll over daily and at this size; closed segments can be gzipped
+    // in the background, and deleted past the retention limits (0 keeps everything)
+    private static final long LOG_SEGMENT_BYTES = Long.getLong("chat.log.segment-bytes", 64L * 1024 * 1024);
+    private static final boolean LOG_COMPRESS = Boolean.getBoolean("chat.log.compress");
+    private static final int LOG_RETENTION_DAYS = Integer.getInteger("chat.log.retention-days", 0);
+    private static final int LOG_MAX_SEGMENTS = Integer.getInteger("chat.log.max-segments", 0);
+    // Structured per-room message records, next to the text logs; segments are memory
+    // mapped for reading, so they stay well under 2 GB
+    private static final String MESSAGE_DIR = "messages";
+    private static final long MESSAGE_SEGMENT_BYTES =
+        Math.min(1L << 30, Long.getLong("chat.messages.segment-bytes", 64L * 1024 * 1024));
+
+    // Per-client outbound queue limits for room traffic (replies are never dropped)
+    private static final int OUTBOUND_CAPACITY = Integer.getInteger("chat.outbound.capacity", 1024);
+    private static final long OUTBOUND_MAX_BYTES = Long.getLong("chat.outbound.max-bytes", 4L * 1024 * 1024);
+    private static final OutboundQueue.OverflowPolicy OUTBOUND_POLICY =
+        OutboundQueue.parsePolicy(System.getProperty("chat.outbound.overflow", "drop-oldest"));
+
+    // Prometheus metrics over HTTP; loopback only by default, port 0 turns it off
+    private static final String METRICS_ADDRESS = System.getProperty("chat.metrics.address", "127.0.0.1");
+    private static final int METRICS_PORT = Integer.getInteger("chat.metrics.port", 9091);
+
     public static void main(String[] args) {
         try {
             // Create directories for logs and file storage
             createDirectories();
+
+            // Load the shared file and voice message indexes, adding anything stored before they existed
+            FileStore.load();
+            loadVoiceIndex();
+            Mailboxes.load();
             
             // Initialize default chat rooms
             createDefaultRooms();
+            Metrics.start();
 
             // Start socket server
-            ServerSocket serverSocket = new ServerSocket(PORT);
-            System.out.println("Chat Server started on port " + PORT);
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(PORT), ACCEPT_BACKLOG);
+            System.out.println("Chat Server started on port " + PORT + " (" + IO_MODE + " I/O)");
             System.out.println("Available rooms: " + String.join(", ", chatRooms.keySet()));
 
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                ClientHandler clientHandler = new ClientHandler(clientSocket);
-                threadPool.execute(clientHandler);
+            if ("nio".equals(IO_MODE)) {
+                new NioServer(serverChannel, IO_THREADS).run();
+            } else {
+                while (true) {
+                    SocketChannel clientChannel = serverChannel.accept();
+                    ClientHandler clientHandler = new ClientHandler(clientChannel);
+                    threadPool.execute(clientHandler);
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -41,10 +151,26 @@ public class ChatServer {
         }
     }
 
-    private static void createDirectories() {
+    private static ExecutorService createClientExecutor() {
+        if ("virtual".equals(IO_MODE)) {
+            // Looked up reflectively so the server still compiles and runs on pre-21 JDKs
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads require Java 21+, falling back to platform threads");
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    static void createDirectories() {
         try {
             Files.createDirectories(Paths.get(SERVER_LOGS_DIR));
+            Files.createDirectories(Paths.get(MESSAGE_DIR));
+            Files.createDirectories(Paths.get(MAILBOX_DIR));
             Files.createDirectories(Paths.get(FILE_STORAGE_DIR));
+            Files.createDirectories(Paths.get(BLOB_DIR));
             Files.createDirectories(Paths.get(VOICE_STORAGE_DIR));
             System.out.println("Created necessary directories for server operation");
         } catch (IOException e) {
@@ -53,7 +179,25 @@ public class ChatServer {
         }
     }
 
-    private static void createDefaultRooms() {
+    private static void loadVoiceIndex() throws IOException {
+        voiceIndex.load();
+        if (!voiceIndex.isEmpty()) {
+            return;
+        }
+        // Recordings stored before the index existed are named "<username>_<millis>.wav"
+        File[] files = new File(VOICE_STORAGE_DIR).listFiles((dir, name) -> name.endsWith(".wav"));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String id = file.getName().substring(0, file.getName().length() - ".wav".length());
+            int separator = id.lastIndexOf('_');
+            String uploader = separator > 0 ? id.substring(0, separator) : "";
+            voiceIndex.add(new MediaIndex.Entry(id, null, file.length(), uploader, "", file.lastModified()));
+        }
+    }
+
+    static void createDefaultRooms() {
         String[] defaultRooms = {"General", "Science", "Gaming", "Music", "Movies"};
         for (String roomName : defaultRooms) {
             chatRooms.put(roomName, new ChatRoom(roomName));
@@ -63,53 +207,114 @@ public class ChatServer {
     static class ChatRoom {
         private final String name;
         private final Set<ClientHandler> members = ConcurrentHashMap.newKeySet();
-        private final String logFile;
-        private final PrintWriter logWriter;
+        private final RoomLog log;
+        private final MessageStore messages;
+        private final MessageHistory history = new MessageHistory(HISTORY_SIZE);
+        final StageLatency latency = new StageLatency();
+        // Published since the server started, for /metrics
+        final LongAdder chatsPublished = new LongAdder();
+        final LongAdder noticesPublished = new LongAdder();
 
         public ChatRoom(String name) {
             this.name = name;
-            this.logFile = SERVER_LOGS_DIR + File.separator + name + "_" + 
-                          LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd")) + ".log";
-            PrintWriter tempWriter = null;
-            try {
-                // Ensure the server logs directory exists
-                Files.createDirectories(Paths.get(SERVER_LOGS_DIR));
-                tempWriter = new PrintWriter(new FileWriter(logFile, true), true);
-                tempWriter.println("--- Room '" + name + "' created/opened at " + 
-                                 LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")) + " ---");
-            } catch (IOException e) {
-                System.err.println("Error creating log file for room " + name + ": " + e.getMessage());
-                e.printStackTrace();
-            }
-            this.logWriter = tempWriter;
+            // Opened, written and rolled over by the log writer thread, never by the caller
+            this.log = new RoomLog(name);
+            this.messages = new MessageStore(name);
+            log.append("--- Room '" + name + "' created/opened at " + 
+                       LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")) + " ---");
         }
 
         public void broadcast(String message, ClientHandler sender) {
-            for (ClientHandler client : members) {
-                if (client != sender) {
-                    client.sendMessage(message);
-                }
+            publish(MessageStore.CHAT, sender.username, message, sender);
+        }
+
+        public void broadcastToAll(String message) {
+            publish(MessageStore.NOTICE, "", message, null);
+        }
+
+        // Numbering, recording and fanning out happen under the history lock, so every
+        // member receives the room's messages in sequence order. Members the overflow
+        // policy disconnects are closed once the lock is released.
+        private void publish(byte type, String sender, String text, ClientHandler exclude) {
+            long stored;
+            List<ClientHandler> slow;
+            synchronized (history) {
+                long start = System.nanoTime();
+                MessageStore.Message message = messages.append(type, sender, text);
+                history.add(message);
+                (type == MessageStore.CHAT ? chatsPublished : noticesPublished).increment();
+                stored = System.nanoTime();
+                slow = fanOut(message, exclude);
+                StageLatency.record(this, StageLatency.Stage.FANOUT, System.nanoTime() - stored);
+                stored -= start;
+            }
+            for (ClientHandler client : slow) {
+                client.disconnectSlow();
             }
             // Log the message
-            logMessage(message);
+            long start = System.nanoTime();
+            logMessage(text);
+            StageLatency.record(this, StageLatency.Stage.LOG, stored + System.nanoTime() - start);
         }
 
-        public void broadcastToAll(String message) {
+        // Encodes the message at most once per wire format; every member gets its own
+        // view of the same read-only bytes. Returns the members whose queue refused it.
+        private List<ClientHandler> fanOut(MessageStore.Message message, ClientHandler exclude) {
+            ByteBuffer line = null;
+            ByteBuffer frame = null;
+            ByteBuffer sequenced = null;
+            List<ClientHandler> slow = Collections.emptyList();
             for (ClientHandler client : members) {
-                client.sendMessage(message);
+                if (client == exclude) {
+                    continue;
+                }
+                boolean queued;
+                if (client.isSequenced()) {
+                    if (sequenced == null) {
+                        sequenced = Frames.encodeSequenced(message.seq, message.text).asReadOnlyBuffer();
+                    }
+                    queued = client.deliver(sequenced.duplicate());
+                } else if (client.isBinary()) {
+                    if (frame == null) {
+                        frame = Frames.encode(Frames.CHAT, message.text).asReadOnlyBuffer();
+                    }
+                    queued = client.deliver(frame.duplicate());
+                } else {
+                    if (line == null) {
+                        line = ClientHandler.encodeLine(message.text).asReadOnlyBuffer();
+                    }
+                    queued = client.deliver(line.duplicate());
+                }
+                if (!queued) {
+                    if (slow.isEmpty()) {
+                        slow = new ArrayList<>();
+                    }
+                    slow.add(client);
+                }
             }
-            // Log the message
-            logMessage(message);
+            return slow;
         }
 
         public void logMessage(String message) {
-            if (logWriter != null) {
-                logWriter.println(message);
-            }
+            log.append(message);
         }
 
         public void addMember(ClientHandler client) {
-            members.add(client);
+            // Taking the snapshot and joining under the history lock means every message
+            // is either in the replay (or before the sequence number the client is told)
+            // or delivered live
+            List<String> recent;
+            synchronized (history) {
+                recent = history.last(HISTORY_REPLAY_ON_JOIN);
+                client.joined(name, messages.lastSeq());
+                members.add(client);
+            }
+            if (!recent.isEmpty()) {
+                client.sendMessage("Recent messages in " + name + ":");
+                for (String message : recent) {
+                    client.sendMessage(message);
+                }
+            }
             String joinMessage = client.username + " has joined the room";
             // Notify room members of new user
             broadcastToAll(joinMessage);
@@ -117,11 +322,82 @@ public class ChatServer {
 
         public void removeMember(ClientHandler client) {
             members.remove(client);
-            String leaveMessage = client.username + " has left the room";
+            announceLeave(client.username);
+        }
+
+        public void announceLeave(String username) {
+            String leaveMessage = username + " has left the room";
             // Notify room members of user leaving
             broadcastToAll(leaveMessage);
         }
 
+        // A dropped client that may resume leaves without an announcement
+        public void suspendMember(ClientHandler client) {
+            members.remove(client);
+        }
+
+        /**
+         * Rejoins a resumed client without announcing it, after sending it what was said
+         * since seq (at most RESUME_MAX_MESSAGES, and never its own messages; nothing for
+         * a negative seq). Recent
+         * messages come from memory; older ones from the message store. Returns how
+         * many were sent; if the store cannot be read, only what is in memory.
+         */
+        public int resumeMember(ClientHandler client, long seq) {
+            long lastSeq = messages.lastSeq();
+            seq = seq < 0 ? lastSeq : Math.max(seq, lastSeq - RESUME_MAX_MESSAGES);
+            List<MessageStore.Message> missed = new ArrayList<>();
+            boolean readable = true;
+            while (true) {
+                boolean stored = false;
+                if (readable && !history.covers(seq)) {
+                    try {
+                        List<MessageStore.Message> older = messages.read(seq + 1, RESUME_MAX_MESSAGES);
+                        missed.addAll(older);
+                        seq = older.isEmpty() ? seq : older.get(older.size() - 1).seq;
+                        stored = !older.isEmpty();
+                    } catch (IOException e) {
+                        System.err.println("Error reading missed messages in " + name + ": " + e.getMessage());
+                        readable = false;
+                    }
+                }
+                synchronized (history) {
+                    // Messages may have rolled out of memory while we read the store
+                    if (stored && !history.covers(seq)) {
+                        continue;
+                    }
+                    missed.addAll(history.since(seq));
+                    int sent = 0;
+                    for (MessageStore.Message message : missed) {
+                        if (message.type != MessageStore.CHAT || !message.sender.equals(client.username)) {
+                            client.sendSequenced(message);
+                            sent++;
+                        }
+                    }
+                    client.joined(name, messages.lastSeq());
+                    members.add(client);
+                    return sent;
+                }
+            }
+        }
+
+        // From memory when the history holds that many, otherwise from the message store
+        public List<String> recentMessages(int count) throws IOException {
+            if (count <= HISTORY_SIZE) {
+                return history.last(count);
+            }
+            List<String> recent = new ArrayList<>();
+            for (MessageStore.Message message : messages.last(count)) {
+                recent.add(message.text);
+            }
+            return recent;
+        }
+
+        public int search(List<String> terms, long from, long to, int skip, int limit, List<String> results)
+                throws IOException {
+            return log.search(terms, from, to, skip, limit, results);
+        }
+
         public int getMemberCount() {
             return members.size();
         }
@@ -135,530 +411,5041 @@ public class ChatServer {
         }
 
         public void close() {
-            if (logWriter != null) {
-                logWriter.println("--- Room '" + name + "' closed at " + 
-                                 LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")) + " ---");
-                logWriter.close();
-            }
+            log.append("--- Room '" + name + "' closed at " + 
+                       LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")) + " ---");
+            log.close();
+            messages.close();
         }
     }
-    
-    static class ClientHandler implements Runnable {
-        private Socket socket;
-        private BufferedReader in;
-        private PrintWriter out;
-        private String username;
-        private ChatRoom currentRoom;
-        private static final DateTimeFormatter TIME_FORMATTER = 
-            DateTimeFormatter.ofPattern("HH:mm");
-        private DataInputStream dataIn;
-        private DataOutputStream dataOut;
 
-        public ClientHandler(Socket socket) {
-            this.socket = socket;
+    /**
+     * The last few messages broadcast in a room, in a fixed array reused as a ring so
+     * recording a message allocates nothing beyond the record itself. Serves /history,
+     * replay on join and resumed sessions without touching the log files.
+     */
+    static class MessageHistory {
+        private final MessageStore.Message[] slots;
+        private long count;
+
+        MessageHistory(int capacity) {
+            this.slots = new MessageStore.Message[Math.max(1, capacity)];
         }
 
-        @Override
-        public void run() {
-            try {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
-                dataIn = new DataInputStream(socket.getInputStream());
-                dataOut = new DataOutputStream(socket.getOutputStream());
+        synchronized void add(MessageStore.Message message) {
+            slots[(int) (count % slots.length)] = message;
+            count++;
+        }
 
-                if (!authenticate()) {
-                    socket.close();
-                    return;
+        // Up to limit of the most recent messages, oldest first
+        synchronized List<String> last(int limit) {
+            int size = (int) Math.min(Math.min(limit, slots.length), count);
+            List<String> messages = new ArrayList<>(size);
+            for (long i = count - size; i < count; i++) {
+                messages.add(slots[(int) (i % slots.length)].text);
+            }
+            return messages;
+        }
+
+        // Whether every message after seq is still held. Sequence numbers continue from
+        // the message store across restarts, while the history starts out empty.
+        synchronized boolean covers(long seq) {
+            if (count == 0) {
+                return false;
+            }
+            long oldest = Math.max(0, count - slots.length);
+            return slots[(int) (oldest % slots.length)].seq <= seq + 1;
+        }
+
+        // The messages held after seq, oldest first
+        synchronized List<MessageStore.Message> since(long seq) {
+            List<MessageStore.Message> messages = new ArrayList<>();
+            for (long i = Math.max(0, count - slots.length); i < count; i++) {
+                MessageStore.Message message = slots[(int) (i % slots.length)];
+                if (message.seq > seq) {
+                    messages.add(message);
                 }
+            }
+            return messages;
+        }
+    }
+
+    /** A dropped client's place, held for RESUME_GRACE_MILLIS in case it reconnects. */
+    static final class SuspendedSession {
+        private static final ScheduledExecutorService expiry = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "session-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private static final SecureRandom random = new SecureRandom();
 
-                // Default to General room
-                currentRoom = chatRooms.get("General");
-                currentRoom.addMember(this);
+        final String username;
+        final String token;
+        final ChatRoom room;
 
-                // List available rooms
-                listAvailableRooms();
+        SuspendedSession(String username, String token, ChatRoom room) {
+            this.username = username;
+            this.token = token;
+            this.room = room;
+        }
 
-                String message;
-                while ((message = in.readLine()) != null) {
-                    processMessage(message);
+        // The name stays taken until the session resumes or expires; expiry announces the
+        // departure the disconnect held back
+        void suspend() {
+            suspendedSessions.put(username, this);
+            expiry.schedule(() -> {
+                if (suspendedSessions.remove(username, this) && room != null) {
+                    room.announceLeave(username);
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                disconnect();
-            }
+            }, RESUME_GRACE_MILLIS, TimeUnit.MILLISECONDS);
         }
 
-        private void listAvailableRooms() {
-            out.println("Available rooms:");
-            for (ChatRoom room : chatRooms.values()) {
-                out.println(room.name + " (" + room.getMemberCount() + " members)");
-            }
+        boolean matches(String presented) {
+            return MessageDigest.isEqual(token.getBytes(StandardCharsets.US_ASCII),
+                                         presented.getBytes(StandardCharsets.US_ASCII));
         }
 
-        private boolean authenticate() throws IOException {
-            out.println("Enter username:");
-            username = in.readLine();
-            
-            if (username == null || username.trim().isEmpty()) {
-                out.println("Invalid username");
-                return false;
-            }
+        static String newToken() {
+            byte[] bytes = new byte[18];
+            random.nextBytes(bytes);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        }
+    }
 
-            if (connectedClients.containsKey(username)) {
-                out.println("Username already exists");
-                return false;
+    /**
+     * Lets a logged-in client fetch ranges of one shared file over extra connections,
+     * so a large download is not limited to a single TCP window. A ticket is issued with
+     * the reply to a size probe and can be redeemed MAX_STREAMS_PER_CLIENT times within
+     * DOWNLOAD_TICKET_MILLIS by a FETCH control frame in place of the username. A FETCH
+     * whose range is refused gets its use back, so the range can be retried.
+     */
+    static final class DownloadTicket {
+        private static final Map<String, DownloadTicket> tickets = new ConcurrentHashMap<>();
+
+        final String fileName;
+        final long expiresAt;
+        final AtomicInteger uses = new AtomicInteger();
+
+        private DownloadTicket(String fileName, long expiresAt) {
+            this.fileName = fileName;
+            this.expiresAt = expiresAt;
+        }
+
+        static String issue(String fileName) {
+            long now = System.currentTimeMillis();
+            tickets.values().removeIf(ticket -> ticket.expiresAt <= now);
+            String token = SuspendedSession.newToken();
+            tickets.put(token, new DownloadTicket(fileName, now + DOWNLOAD_TICKET_MILLIS));
+            return token;
+        }
+
+        // Takes one use of the ticket, or returns null if it is unknown, expired or used up
+        static DownloadTicket redeem(String token) {
+            DownloadTicket ticket = tickets.get(token);
+            if (ticket == null || ticket.expiresAt <= System.currentTimeMillis()) {
+                return null;
+            }
+            if (ticket.uses.incrementAndGet() > MAX_STREAMS_PER_CLIENT) {
+                ticket.uses.decrementAndGet();
+                return null;
             }
+            return ticket;
+        }
 
-            connectedClients.put(username, this);
-            return true;
+        // Gives back a use whose range never started, so the client can fetch it again
+        void refund() {
+            uses.decrementAndGet();
         }
+    }
 
-        private void processMessage(String message) {
-            // Trim whitespace and remove leading '/'
-            message = message.trim();
-            
-            if (message.startsWith("/join ")) {
-                // Use split to properly handle the room name
-                String[] parts = message.split("\\s+", 2);
-                if (parts.length > 1) {
-                    String roomName = parts[1].trim();
-                    joinRoom(roomName);
-                } else {
-                    sendMessage("Please specify a room name. Usage: /join RoomName");
-                }
-            } else if (message.equals("/rooms")) {
-                listAvailableRooms();
-            } else if (message.startsWith("/create ")) {
-                // Similar split logic for create command
-                String[] parts = message.split("\\s+", 2);
-                if (parts.length > 1) {
-                    String roomName = parts[1].trim();
-                    createRoom(roomName);
-                } else {
-                    sendMessage("Please specify a room name. Usage: /create RoomName");
-                }
-            } else if (message.equals("/exit")) {
-                exitCurrentRoom();
-            } else if (message.equals("/members")) {
-                listRoomMembers();
-            } else if (message.equals("/help")) {
-                showHelp();
-            } else if (message.startsWith("/whisper ")) {
-                sendPrivateMessage(message);
-            } else if (message.equals("/sendfile")) {
-                try {
-                    receiveFile();
-                } catch (IOException e) {
-                    sendMessage("Error receiving file: " + e.getMessage());
-                    e.printStackTrace();
-                }
-            } else if (message.startsWith("/getfile ")) {
-                String[] parts = message.split("\\s+", 2);
-                if (parts.length > 1) {
-                    String fileName = parts[1].trim();
-                    try {
-                        sendFile(fileName);
-                    } catch (IOException e) {
-                        sendMessage("Error sending file: " + e.getMessage());
-                        e.printStackTrace();
+    /**
+     * Whispers for users who are not connected, kept on disk until they next log in.
+     * Each recipient has an append-only mailbox file, mailboxes/<name>.box, holding
+     * records of (long time, UTF sender, int length, UTF-8 text). A whisper costs one
+     * append, and logging in reads the file once and deletes it. The heap holds only
+     * the names of users who have ever logged in, since only they can be whispered to
+     * while away, and the size of each non-empty mailbox, to enforce MAILBOX_MAX_BYTES
+     * without touching the disk.
+     */
+    static final class Mailboxes {
+        private static final String SUFFIX = ".box";
+        private static final Path USERS_FILE = Paths.get(MAILBOX_DIR, ".users");
+        private static final Set<String> knownUsers = ConcurrentHashMap.newKeySet();
+        // Bytes waiting per recipient, guarded by the class
+        private static final Map<String, Long> pendingBytes = new HashMap<>();
+        private static Writer usersWriter;
+
+        private Mailboxes() {
+        }
+
+        static synchronized void load() throws IOException {
+            if (Files.exists(USERS_FILE)) {
+                for (String name : Files.readAllLines(USERS_FILE, StandardCharsets.UTF_8)) {
+                    if (!name.isEmpty()) {
+                        knownUsers.add(name);
                     }
-                } else {
-                    sendMessage("Please specify a file name. Usage: /getfile FileName");
-                }
-            } else if (message.equals("/listfiles")) {
-                listAvailableFiles();
-            } else if (message.equals("/sendvoice")) {
-                try {
-                    receiveVoiceMessage();
-                } catch (IOException e) {
-                    sendMessage("Error receiving voice message: " + e.getMessage());
-                    e.printStackTrace();
                 }
-            } else if (message.startsWith("/getvoice ")) {
-                String[] parts = message.split("\\s+", 2);
-                if (parts.length > 1) {
-                    String voiceId = parts[1].trim();
+            }
+            File[] boxes = new File(MAILBOX_DIR).listFiles((dir, name) -> name.endsWith(SUFFIX));
+            if (boxes != null) {
+                for (File box : boxes) {
+                    String encoded = box.getName().substring(0, box.getName().length() - SUFFIX.length());
                     try {
-                        sendVoiceMessage(voiceId);
-                    } catch (IOException e) {
-                        sendMessage("Error sending voice message: " + e.getMessage());
-                        e.printStackTrace();
+                        String name = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8);
+                        pendingBytes.put(name, box.length());
+                    } catch (IllegalArgumentException e) {
+                        System.err.println("Ignoring unexpected file in " + MAILBOX_DIR + ": " + box.getName());
                     }
-                } else {
-                    sendMessage("Please specify a voice message ID. Usage: /getvoice VoiceID");
                 }
-            } else if (message.equals("/listvoices")) {
-                listAvailableVoiceMessages();
-            } else {
-                broadcastMessage(message);
             }
+            usersWriter = Files.newBufferedWriter(USERS_FILE, StandardCharsets.UTF_8,
+                                                  StandardOpenOption.CREATE, StandardOpenOption.APPEND);
         }
 
-        private void listAvailableFiles() {
-            try {
-                // Ensure the directory exists
-                Files.createDirectories(Paths.get(FILE_STORAGE_DIR));
-                
-                File directory = new File(FILE_STORAGE_DIR);
-                File[] files = directory.listFiles();
-                sendMessage("Available shared files:");
-                if (files != null && files.length > 0) {
-                    for (File file : files) {
-                        sendMessage("- " + file.getName() + " (" + formatFileSize(file.length()) + ")");
-                    }
-                    sendMessage("Use /getfile FileName to download a file");
-                } else {
-                    sendMessage("No shared files available");
+        // Called at every login; only a first login touches the disk
+        static void remember(String name) {
+            if (!knownUsers.add(name)) {
+                return;
+            }
+            synchronized (Mailboxes.class) {
+                try {
+                    usersWriter.write(MediaIndex.Entry.field(name));
+                    usersWriter.write('\n');
+                    usersWriter.flush();
+                } catch (IOException e) {
+                    System.err.println("Error recording user " + name + ": " + e.getMessage());
                 }
-            } catch (Exception e) {
-                sendMessage("Error listing files: " + e.getMessage());
-                e.printStackTrace();
             }
         }
 
-        private void listAvailableVoiceMessages() {
-            try {
-                // Ensure the directory exists
-                Files.createDirectories(Paths.get(VOICE_STORAGE_DIR));
-                
-                File directory = new File(VOICE_STORAGE_DIR);
-                File[] files = directory.listFiles();
-                sendMessage("Available voice messages:");
-                if (files != null && files.length > 0) {
-                    for (File file : files) {
-                        String fileNameWithoutExt = file.getName().replaceAll("\\.wav$", "");
-                        sendMessage("- " + fileNameWithoutExt + " (" + formatFileSize(file.length()) + ")");
-                    }
-                    sendMessage("Use /getvoice VoiceID to download a voice message");
-                } else {
-                    sendMessage("No voice messages available");
-                }
-            } catch (Exception e) {
-                sendMessage("Error listing voice messages: " + e.getMessage());
-                e.printStackTrace();
-            }
+        static boolean isKnown(String name) {
+            return knownUsers.contains(name);
         }
-        
-        private String formatFileSize(long size) {
-            final String[] units = new String[] { "B", "KB", "MB", "GB", "TB" };
-            int unitIndex = 0;
-            double fileSize = size;
-            
-            while (fileSize > 1024 && unitIndex < units.length - 1) {
-                fileSize /= 1024;
-                unitIndex++;
+
+        static boolean hasMail(String name) {
+            synchronized (Mailboxes.class) {
+                return pendingBytes.containsKey(name);
             }
-            
-            return String.format("%.2f %s", fileSize, units[unitIndex]);
         }
 
-        private void receiveFile() throws IOException {
-            sendMessage("READY_TO_RECEIVE_FILE");
-            
-            // Receive file name and size
-            String fileName = in.readLine();
-            
-            // Check if client cancelled the file transfer
-            if ("FILE_TRANSFER_CANCELLED".equals(fileName)) {
-                return; // Simply return, allowing the client to continue with other commands
+        // False if the recipient's mailbox has no room for the message
+        static synchronized boolean deliverLater(String recipient, String sender, String text, long time)
+                throws IOException {
+            byte[] body = text.getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream record = new ByteArrayOutputStream(32 + body.length);
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeLong(time);
+            out.writeUTF(sender);
+            out.writeInt(body.length);
+            out.write(body);
+            long pending = pendingBytes.getOrDefault(recipient, 0L);
+            if (pending + record.size() > MAILBOX_MAX_BYTES) {
+                return false;
             }
-            
-            long fileSize = Long.parseLong(in.readLine());
-            
-            if (fileSize > MAX_FILE_SIZE) {
-                sendMessage("ERROR: File too large. Maximum size is " + formatFileSize(MAX_FILE_SIZE));
-                return;
+            Files.write(boxPath(recipient), record.toByteArray(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            pendingBytes.put(recipient, pending + record.size());
+            return true;
+        }
+
+        /**
+         * Everything waiting for the recipient, oldest first, formatted like a live
+         * whisper but with its date, and removes it from disk. A record cut short by a
+         * crash ends the mailbox.
+         */
+        static synchronized List<String> collect(String recipient) throws IOException {
+            if (!pendingBytes.containsKey(recipient)) {
+                return Collections.emptyList();
             }
-            
-            // Ensure the file storage directory exists
-            Files.createDirectories(Paths.get(FILE_STORAGE_DIR));
-            
-            String storedFileName = System.currentTimeMillis() + "_" + fileName;
-            String filePath = FILE_STORAGE_DIR + File.separator + storedFileName;
-            
-            try (FileOutputStream fileOut = new FileOutputStream(filePath)) {
-                byte[] buffer = new byte[8192];
-                int bytesRead;
-                long totalBytesRead = 0;
-                int percentCompleted = 0;
-                
-                while (totalBytesRead < fileSize) {
-                    int remaining = (int) Math.min(buffer.length, fileSize - totalBytesRead);
-                    bytesRead = dataIn.read(buffer, 0, remaining);
-                    if (bytesRead == -1) break;
-                    
-                    fileOut.write(buffer, 0, bytesRead);
-                    totalBytesRead += bytesRead;
-                    
-                    int newPercentCompleted = (int) ((totalBytesRead * 100) / fileSize);
-                    if (newPercentCompleted >= percentCompleted + 10) {
-                        percentCompleted = newPercentCompleted;
-                        sendMessage("File upload: " + percentCompleted + "% completed");
+            Path box = boxPath(recipient);
+            List<String> messages = new ArrayList<>();
+            if (Files.exists(box)) {
+                DateTimeFormatter format = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+                ZoneId zone = ZoneId.systemDefault();
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(box)))) {
+                    while (true) {
+                        long time = in.readLong();
+                        String sender = in.readUTF();
+                        byte[] body = new byte[in.readInt()];
+                        in.readFully(body);
+                        messages.add("[" + Instant.ofEpochMilli(time).atZone(zone).format(format) + "] [PRIVATE] "
+                                     + sender + " whispers: " + new String(body, StandardCharsets.UTF_8));
                     }
+                } catch (EOFException e) {
+                    // End of the mailbox
                 }
             }
-            
-            sendMessage("File uploaded successfully as: " + fileName);
-            
-            // Notify room about the new file
-            if (currentRoom != null) {
-                String fileMessage = username + " shared a file: " + fileName + " (" + formatFileSize(fileSize) + ")";
-                fileMessage += "\nUse /getfile " + storedFileName + " to download";
-                currentRoom.broadcast(fileMessage, this);
-                currentRoom.logMessage(fileMessage);
-            }
+            Files.deleteIfExists(box);
+            pendingBytes.remove(recipient);
+            return messages;
         }
 
-        private void sendFile(String fileName) throws IOException {
-            // Ensure the file storage directory exists
-            Files.createDirectories(Paths.get(FILE_STORAGE_DIR));
-            
-            File file = new File(FILE_STORAGE_DIR + File.separator + fileName);
-            if (!file.exists() || !file.isFile()) {
-                sendMessage("ERROR: File not found");
-                return;
+        // Names can hold anything, file names cannot
+        private static Path boxPath(String name) {
+            return Paths.get(MAILBOX_DIR, Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(name.getBytes(StandardCharsets.UTF_8)) + SUFFIX);
+        }
+    }
+
+    /**
+     * One room's log, kept as segments named Room_yyyyMMdd.log, then Room_yyyyMMdd.1.log
+     * and so on once a segment reaches LOG_SEGMENT_BYTES; a new day starts a new
+     * segment. Lines are handed to the LogWriter and reach the file on its thread, so
+     * neither logging nor rollover ever blocks the thread that is broadcasting.
+     * Compressing and deleting old segments happens on a separate maintenance thread.
+     * Each segment has a SegmentIndex for /search, saved next to it once it is closed;
+     * segments found without one are indexed on the maintenance thread too.
+     */
+    static class RoomLog implements LogWriter.Sink {
+        private static final DateTimeFormatter DAY_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd");
+        // Room_yyyyMMdd[.N].log[.gz]
+        private static final String SEGMENT_PATTERN = "_(\\d{8})(?:\\.(\\d+))?\\.log(\\.gz)?";
+        private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+        private static final ExecutorService maintenance = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "room-log-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Index files with a build queued on the maintenance thread
+        private static final Set<Path> indexing = ConcurrentHashMap.newKeySet();
+
+        /**
+         * A log segment file; only the one being written carries its index. When that
+         * segment was continued after a restart, the lines already in it, up to
+         * headEnd, are indexed separately in the background into head.
+         */
+        private static final class Segment {
+            final LocalDate day;
+            final int index;
+            final Path path;
+            final SegmentIndex search;
+            final long headEnd;
+            volatile SegmentIndex head;
+
+            Segment(LocalDate day, int index, Path path, SegmentIndex search, long headEnd) {
+                this.day = day;
+                this.index = index;
+                this.path = path;
+                this.search = search;
+                this.headEnd = headEnd;
             }
-            
-            long fileSize = file.length();
-            String originalFileName = fileName;
-            if (fileName.contains("_")) {
-                originalFileName = fileName.substring(fileName.indexOf("_") + 1);
+
+            boolean isBefore(LocalDate otherDay, int otherIndex) {
+                int byDay = day.compareTo(otherDay);
+                return byDay < 0 || (byDay == 0 && index < otherIndex);
             }
-            
-            sendMessage("SENDING_FILE");
-            sendMessage(originalFileName);
-            sendMessage(String.valueOf(fileSize));
-            
-            try (FileInputStream fileIn = new FileInputStream(file)) {
-                byte[] buffer = new byte[8192];
-                int bytesRead;
-                while ((bytesRead = fileIn.read(buffer)) != -1) {
-                    dataOut.write(buffer, 0, bytesRead);
-                }
-                dataOut.flush();
+
+            // Segment name without .log[.gz], shared by the segment and its index
+            String baseName() {
+                String name = path.getFileName().toString();
+                return name.substring(0, name.indexOf(".log"));
             }
-            
-            sendMessage("File download complete: " + originalFileName);
         }
 
-        private void receiveVoiceMessage() throws IOException {
-            sendMessage("READY_TO_RECEIVE_VOICE");
-            
-            // Receive voice message details
-            long recordingDuration = Long.parseLong(in.readLine());
-            long dataSize = Long.parseLong(in.readLine());
-            
-            if (dataSize > MAX_FILE_SIZE) {
-                sendMessage("ERROR: Voice message too large. Maximum size is " + formatFileSize(MAX_FILE_SIZE));
+        private final String room;
+        private final Pattern segmentName;
+        // Owned by the log writer thread
+        private OutputStream out;
+        private FileChannel channel;
+        private LocalDate day;
+        private int segment;
+        private long segmentBytes;
+        private long nextDayMillis;
+        private boolean failed;
+        private boolean dirty;
+        // Read by searches on other threads
+        private volatile Segment active;
+
+        RoomLog(String room) {
+            this.room = room;
+            this.segmentName = Pattern.compile(Pattern.quote(room) + SEGMENT_PATTERN);
+        }
+
+        void append(String line) {
+            LogWriter.enqueue(this, line);
+        }
+
+        // Anything appended before this still gets written
+        void close() {
+            LogWriter.enqueue(this, null);
+        }
+
+        // Log writer thread only, as are the methods below up to search
+        @Override
+        public void write(LogWriter.Record record) {
+            write(record.line, record.time);
+        }
+
+        void write(String line, long time) {
+            if (failed) {
                 return;
             }
-            
-            // Ensure voice storage directory exists
-            Files.createDirectories(Paths.get(VOICE_STORAGE_DIR));
-            
-            String voiceId = username + "_" + System.currentTimeMillis();
-            String filePath = VOICE_STORAGE_DIR + File.separator + voiceId + ".wav";
-            
-            try (FileOutputStream fileOut = new FileOutputStream(filePath)) {
-                byte[] buffer = new byte[8192];
-                int bytesRead;
-                long totalBytesRead = 0;
-                
-                while (totalBytesRead < dataSize) {
-                    int remaining = (int) Math.min(buffer.length, dataSize - totalBytesRead);
-                    bytesRead = dataIn.read(buffer, 0, remaining);
-                    if (bytesRead == -1) break;
-                    
-                    fileOut.write(buffer, 0, bytesRead);
-                    totalBytesRead += bytesRead;
+            try {
+                if (out == null) {
+                    open();
+                } else if (System.currentTimeMillis() >= nextDayMillis || segmentBytes >= LOG_SEGMENT_BYTES) {
+                    rollOver();
                 }
-            }
-            
-            int durationSeconds = (int) (recordingDuration / 1000);
-            sendMessage("Voice message uploaded successfully (Duration: " + durationSeconds + " seconds)");
-            
-            // Notify room about the new voice message
-            if (currentRoom != null) {
-                String voiceMessage = username + " shared a voice message (Duration: " + durationSeconds + " seconds)";
-                voiceMessage += "\nUse /getvoice " + voiceId + " to listen";
-                currentRoom.broadcast(voiceMessage, this);
-                currentRoom.logMessage(voiceMessage);
+                byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+                out.write(bytes);
+                out.write(LINE_SEPARATOR);
+                int length = bytes.length + LINE_SEPARATOR.length;
+                active.search.add(segmentBytes, length, time, line);
+                segmentBytes += length;
+                dirty = true;
+            } catch (IOException e) {
+                fail(e);
             }
         }
 
-        private void sendVoiceMessage(String voiceId) throws IOException {
-            // Ensure the voice storage directory exists
-            Files.createDirectories(Paths.get(VOICE_STORAGE_DIR));
-            
-            File file = new File(VOICE_STORAGE_DIR + File.separator + voiceId + ".wav");
-            if (!file.exists() || !file.isFile()) {
-                sendMessage("ERROR: Voice message not found");
-                return;
+        // Continues today's last segment if it has room, so restarts do not leave a
+        // trail of small segments
+        private void open() throws IOException {
+            Files.createDirectories(Paths.get(SERVER_LOGS_DIR));
+            startDay();
+            while (Files.exists(segmentPath(segment + 1, false)) || Files.exists(segmentPath(segment + 1, true))) {
+                segment++;
             }
-            
-            long fileSize = file.length();
-            
-            sendMessage("SENDING_VOICE");
-            sendMessage(String.valueOf(fileSize));
-            
-            try (FileInputStream fileIn = new FileInputStream(file)) {
-                byte[] buffer = new byte[8192];
-                int bytesRead;
-                while ((bytesRead = fileIn.read(buffer)) != -1) {
-                    dataOut.write(buffer, 0, bytesRead);
-                }
-                dataOut.flush();
+            Path path = segmentPath(segment, false);
+            if (Files.exists(segmentPath(segment, true))
+                    || (Files.exists(path) && Files.size(path) >= LOG_SEGMENT_BYTES)) {
+                segment++;
+                path = segmentPath(segment, false);
             }
-            
-            sendMessage("Voice message download complete");
+            openSegment(path);
+            scheduleSweep();
+            Path current = path;
+            maintenance.execute(() -> indexMissing(current));
         }
 
-        private void showHelp() {
-            sendMessage("Available commands:");
+        private void rollOver() throws IOException {
+            closeFile();
+            if (System.currentTimeMillis() >= nextDayMillis) {
+                startDay();
+            } else {
+                segment++;
+            }
+            openSegment(segmentPath(segment, false));
+            LogWriter.segmentsRotated.increment();
+            scheduleSweep();
+        }
+
+        private void startDay() {
+            day = LocalDate.now();
+            segment = 0;
+            nextDayMillis = day.plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+
+        // Lines already in a segment we continue are indexed from the file on the
+        // maintenance thread, so the log writer starts writing straight away
+        private void openSegment(Path path) throws IOException {
+            FileOutputStream file = new FileOutputStream(path.toFile(), true);
+            channel = file.getChannel();
+            segmentBytes = channel.size();
+            out = new BufferedOutputStream(file, LOG_BUFFER_SIZE);
+            Segment opened = new Segment(day, segment, path, new SegmentIndex(), segmentBytes);
+            active = opened;
+            if (opened.headEnd > 0) {
+                maintenance.execute(() -> {
+                    try {
+                        opened.head = SegmentIndex.build(opened.path, opened.day, opened.headEnd);
+                    } catch (IOException e) {
+                        System.err.println("Error indexing log segment " + opened.path + ": " + e.getMessage());
+                    }
+                });
+            }
+        }
+
+        private Path segmentPath(int index, boolean compressed) {
+            String name = room + "_" + day.format(DAY_FORMAT) + (index == 0 ? "" : "." + index) + ".log";
+            return Paths.get(SERVER_LOGS_DIR, compressed ? name + ".gz" : name);
+        }
+
+        @Override
+        public void flush(boolean sync) {
+            if (!dirty || out == null) {
+                return;
+            }
+            dirty = false;
+            try {
+                out.flush();
+                if (sync) {
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        @Override
+        public void closeFile() {
+            flush(LOG_FSYNC);
+            if (out == null) {
+                return;
+            }
+            try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            out = null;
+            // Searches keep using the index from memory while it is saved. A continued
+            // segment's index only covers what was written since, so it is rebuilt.
+            Segment closed = active;
+            if (closed.headEnd > 0) {
+                scheduleIndex(closed);
+            } else {
+                SegmentIndex.remember(indexPath(closed), closed.search);
+                maintenance.execute(() -> closed.search.save(indexPath(closed)));
+            }
+            active = null;
+        }
+
+        // Stops logging for this room rather than failing on every line
+        private void fail(IOException e) {
+            System.err.println("Error writing log file for room " + room + ": " + e.getMessage());
+            e.printStackTrace();
+            failed = true;
+            closeFile();
+        }
+
+        private void scheduleSweep() {
+            if (!LOG_COMPRESS && LOG_RETENTION_DAYS <= 0 && LOG_MAX_SEGMENTS <= 0) {
+                return;
+            }
+            LocalDate activeDay = day;
+            int activeSegment = segment;
+            maintenance.execute(() -> sweep(activeDay, activeSegment));
+        }
+
+        // Maintenance thread: compresses segments older than the active one and deletes
+        // those past the retention limits. The active segment is never touched.
+        private void sweep(LocalDate activeDay, int activeSegment) {
+            List<Segment> closed = new ArrayList<>();
+            for (Segment segment : segments()) {
+                if (segment.isBefore(activeDay, activeSegment)) {
+                    closed.add(segment);
+                }
+            }
+            // Oldest first; the active segment counts towards the segment limit
+            Collections.reverse(closed);
+            int excess = LOG_MAX_SEGMENTS > 0 ? closed.size() + 1 - LOG_MAX_SEGMENTS : 0;
+            LocalDate oldestKept = LOG_RETENTION_DAYS > 0 ? LocalDate.now().minusDays(LOG_RETENTION_DAYS) : LocalDate.MIN;
+            for (Segment segment : closed) {
+                try {
+                    if (excess-- > 0 || segment.day.isBefore(oldestKept)) {
+                        Files.deleteIfExists(segment.path);
+                        Files.deleteIfExists(indexPath(segment));
+                        SegmentIndex.forget(indexPath(segment));
+                    } else if (LOG_COMPRESS && !segment.path.toString().endsWith(".gz")) {
+                        compress(segment.path);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error maintaining log segment " + segment.path + ": " + e.getMessage());
+                }
+            }
+        }
+
+        // This room's segments on disk, newest first. A segment caught mid-compression
+        // is listed once.
+        private List<Segment> segments() {
+            File[] files = new File(SERVER_LOGS_DIR).listFiles();
+            if (files == null) {
+                return Collections.emptyList();
+            }
+            Map<String, Segment> found = new HashMap<>();
+            for (File file : files) {
+                Matcher match = segmentName.matcher(file.getName());
+                if (match.matches()) {
+                    Segment segment = new Segment(LocalDate.parse(match.group(1), DAY_FORMAT),
+                                                  match.group(2) == null ? 0 : Integer.parseInt(match.group(2)),
+                                                  file.toPath(), null, 0);
+                    found.putIfAbsent(segment.baseName(), segment);
+                }
+            }
+            List<Segment> segments = new ArrayList<>(found.values());
+            segments.sort((a, b) -> a.isBefore(b.day, b.index) ? 1 : b.isBefore(a.day, a.index) ? -1 : 0);
+            return segments;
+        }
+
+        private static Path indexPath(Segment segment) {
+            return segment.path.resolveSibling(segment.baseName() + ".idx");
+        }
+
+        // Maintenance thread: queues an index build for every closed segment without one,
+        // such as those written before search existed
+        private void indexMissing(Path current) {
+            for (Segment segment : segments()) {
+                if (!segment.path.equals(current) && !SegmentIndex.exists(indexPath(segment))) {
+                    scheduleIndex(segment);
+                }
+            }
+        }
+
+        // Builds and saves a closed segment's index on the maintenance thread. The
+        // segment may have been compressed or deleted by the time the build runs.
+        private static void scheduleIndex(Segment segment) {
+            Path indexFile = indexPath(segment);
+            if (!indexing.add(indexFile)) {
+                return;
+            }
+            maintenance.execute(() -> {
+                try {
+                    Path source = Files.exists(segment.path)
+                        ? segment.path : segment.path.resolveSibling(segment.path.getFileName() + ".gz");
+                    if (Files.exists(source)) {
+                        SegmentIndex index = SegmentIndex.build(source, segment.day, Long.MAX_VALUE);
+                        index.save(indexFile);
+                        SegmentIndex.remember(indexFile, index);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error indexing log segment " + segment.path + ": " + e.getMessage());
+                } finally {
+                    indexing.remove(indexFile);
+                }
+            });
+        }
+
+        // Writes path.gz next to path, then removes path
+        private static void compress(Path path) throws IOException {
+            Path target = path.resolveSibling(path.getFileName() + ".gz");
+            Path temp = path.resolveSibling(path.getFileName() + ".gz.tmp");
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(temp))) {
+                Files.copy(path, out);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(path);
+        }
+
+        /**
+         * Adds lines containing every term to results, newest first, logged between from
+         * and to (epoch millis, inclusive), after skipping the first skip matches. Each
+         * line is prefixed with the date it was logged. Lines still buffered by the log
+         * writer are not found until its next flush. Segments whose index is still being
+         * built are passed over; returns how many were.
+         */
+        int search(List<String> terms, long from, long to, int skip, int limit, List<String> results) throws IOException {
+            int unindexed = 0;
+            Segment current = active;
+            Path currentPath = current == null ? null : current.path;
+            if (current != null) {
+                skip = current.search.search(current.path, terms, from, to, skip, limit, results);
+                SegmentIndex head = current.head;
+                if (head != null) {
+                    skip = head.search(current.path, terms, from, to, skip, limit, results);
+                } else if (current.headEnd > 0) {
+                    unindexed++;
+                }
+            }
+            ZoneId zone = ZoneId.systemDefault();
+            for (Segment segment : segments()) {
+                if (results.size() >= limit) {
+                    break;
+                }
+                if (segment.path.equals(currentPath)
+                        || segment.day.atStartOfDay(zone).toInstant().toEpochMilli() > to
+                        || segment.day.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli() <= from) {
+                    continue;
+                }
+                SegmentIndex index = SegmentIndex.forSegment(indexPath(segment));
+                if (index == null) {
+                    scheduleIndex(segment);
+                    unindexed++;
+                    continue;
+                }
+                skip = index.search(segment.path, terms, from, to, skip, limit, results);
+            }
+            return unindexed;
+        }
+    }
+
+    /**
+     * Inverted index over one log segment: for every term, the numbers of the lines
+     * that contain it, stored as varint-encoded gaps, plus each line's byte offset and
+     * time so matching lines can be read straight from the segment. The active
+     * segment's index grows as lines are written; closed ones are saved as .idx files
+     * and loaded on demand into a small cache. Segments without one, such as logs
+     * written before search existed, are indexed on the log maintenance thread.
+     */
+    static final class SegmentIndex {
+        private static final int MAGIC = 0x45434958; // "ECIX"
+        private static final int MAX_CACHED = 64;
+        private static final int MIN_TERM_LENGTH = 1;
+        private static final int MAX_TERM_LENGTH = 64;
+        private static final int BUILD_BUFFER_SIZE = 64 * 1024;
+        private static final int[] NO_LINES = new int[0];
+        private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+        private static final Map<Path, SegmentIndex> cache = new LinkedHashMap<Path, SegmentIndex>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, SegmentIndex> eldest) {
+                return size() > MAX_CACHED;
+            }
+        };
+
+        /** Line numbers for one term, each stored as the gap from the previous one. */
+        private static final class Postings {
+            byte[] data = new byte[4];
+            int size;
+            int count;
+            int last = -1;
+
+            void add(int line) {
+                if (line == last) {
+                    return;
+                }
+                if (data.length - size < 5) {
+                    data = Arrays.copyOf(data, data.length * 2);
+                }
+                size = putVarint(data, size, line - last);
+                last = line;
+                count++;
+            }
+
+            int[] decode() {
+                int[] lines = new int[count];
+                int position = 0;
+                int line = -1;
+                for (int i = 0; i < count; i++) {
+                    int gap = 0;
+                    int shift = 0;
+                    byte b;
+                    do {
+                        b = data[position++];
+                        gap |= (b & 0x7f) << shift;
+                        shift += 7;
+                    } while (b < 0);
+                    line += gap;
+                    lines[i] = line;
+                }
+                return lines;
+            }
+        }
+
+        private final Map<String, Postings> terms = new HashMap<>();
+        private long[] offsets = new long[64];
+        private long[] times = new long[64];
+        private int lines;
+        private long end;
+        private long minTime = Long.MAX_VALUE;
+        private long maxTime = Long.MIN_VALUE;
+
+        synchronized void add(long offset, int length, long time, String line) {
+            if (lines == offsets.length) {
+                offsets = Arrays.copyOf(offsets, lines * 2);
+                times = Arrays.copyOf(times, lines * 2);
+            }
+            offsets[lines] = offset;
+            times[lines] = time;
+            end = offset + length;
+            minTime = Math.min(minTime, time);
+            maxTime = Math.max(maxTime, time);
+            for (String term : tokenize(line)) {
+                terms.computeIfAbsent(term, key -> new Postings()).add(lines);
+            }
+            lines++;
+        }
+
+        // Lowercased runs of letters and digits, at most MAX_TERM_LENGTH long
+        static List<String> tokenize(String text) {
+            List<String> tokens = new ArrayList<>();
+            int start = -1;
+            for (int i = 0; i <= text.length(); i++) {
+                boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+                if (word && start < 0) {
+                    start = i;
+                } else if (!word && start >= 0) {
+                    if (i - start >= MIN_TERM_LENGTH && i - start <= MAX_TERM_LENGTH) {
+                        tokens.add(text.substring(start, i).toLowerCase());
+                    }
+                    start = -1;
+                }
+            }
+            return tokens;
+        }
+
+        // Adds matches to results, newest first, until it holds limit lines; returns
+        // how many matches are still to be skipped
+        int search(Path segment, List<String> query, long from, long to, int skip, int limit,
+                   List<String> results) throws IOException {
+            List<Integer> page = new ArrayList<>();
+            long[] starts;
+            long[] ends;
+            long[] pageTimes;
+            synchronized (this) {
+                if (lines == 0 || minTime > to || maxTime < from) {
+                    return skip;
+                }
+                int[] matches = match(query);
+                for (int i = matches.length - 1; i >= 0 && results.size() + page.size() < limit; i--) {
+                    long time = times[matches[i]];
+                    if (time < from || time > to) {
+                        continue;
+                    }
+                    if (skip > 0) {
+                        skip--;
+                    } else {
+                        page.add(matches[i]);
+                    }
+                }
+                // Read in file order, which is the reverse of the page
+                Collections.reverse(page);
+                starts = new long[page.size()];
+                ends = new long[page.size()];
+                pageTimes = new long[page.size()];
+                for (int i = 0; i < page.size(); i++) {
+                    int line = page.get(i);
+                    starts[i] = offsets[line];
+                    ends[i] = line + 1 < lines ? offsets[line + 1] : end;
+                    pageTimes[i] = times[line];
+                }
+            }
+            String[] text = readLines(segment, starts, ends);
+            ZoneId zone = ZoneId.systemDefault();
+            for (int i = text.length - 1; i >= 0; i--) {
+                if (text[i] != null) {
+                    results.add(Instant.ofEpochMilli(pageTimes[i]).atZone(zone).format(DATE_FORMAT) + " " + text[i]);
+                }
+            }
+            return skip;
+        }
+
+        // Line numbers containing every query term, ascending
+        private int[] match(List<String> query) {
+            int[] result = null;
+            for (String term : query) {
+                Postings postings = terms.get(term);
+                if (postings == null) {
+                    return NO_LINES;
+                }
+                int[] lines = postings.decode();
+                result = result == null ? lines : intersect(result, lines);
+            }
+            return result == null ? NO_LINES : result;
+        }
+
+        private static int[] intersect(int[] a, int[] b) {
+            int[] both = new int[Math.min(a.length, b.length)];
+            int count = 0;
+            for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+                if (a[i] < b[j]) {
+                    i++;
+                } else if (a[i] > b[j]) {
+                    j++;
+                } else {
+                    both[count++] = a[i];
+                    i++;
+                    j++;
+                }
+            }
+            return Arrays.copyOf(both, count);
+        }
+
+        // The lines at the given ascending byte ranges; null for a line not on disk yet
+        private static String[] readLines(Path segment, long[] starts, long[] ends) throws IOException {
+            String[] text = new String[starts.length];
+            if (starts.length == 0) {
+                return text;
+            }
+            if (segment.toString().endsWith(".gz")) {
+                try (InputStream in = new BufferedInputStream(new GZIPInputStream(Files.newInputStream(segment)))) {
+                    long position = 0;
+                    for (int i = 0; i < starts.length; i++) {
+                        in.skipNBytes(starts[i] - position);
+                        byte[] bytes = in.readNBytes((int) (ends[i] - starts[i]));
+                        position = starts[i] + bytes.length;
+                        text[i] = lineText(bytes, bytes.length);
+                    }
+                }
+                return text;
+            }
+            try (FileChannel source = FileChannel.open(segment, StandardOpenOption.READ)) {
+                for (int i = 0; i < starts.length; i++) {
+                    ByteBuffer bytes = ByteBuffer.allocate((int) (ends[i] - starts[i]));
+                    while (bytes.hasRemaining() && source.read(bytes, starts[i] + bytes.position()) > 0) {
+                        // Keep reading until the line is complete or the file ends
+                    }
+                    if (!bytes.hasRemaining()) {
+                        text[i] = lineText(bytes.array(), bytes.capacity());
+                    }
+                }
+            }
+            return text;
+        }
+
+        private static String lineText(byte[] bytes, int length) {
+            while (length > 0 && (bytes[length - 1] == '\n' || bytes[length - 1] == '\r')) {
+                length--;
+            }
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+        // The index of a closed segment, cached or saved next to it; null if it has
+        // not been built yet
+        static SegmentIndex forSegment(Path indexFile) throws IOException {
+            synchronized (cache) {
+                SegmentIndex cached = cache.get(indexFile);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+            if (!Files.exists(indexFile)) {
+                return null;
+            }
+            SegmentIndex index = load(indexFile);
+            remember(indexFile, index);
+            return index;
+        }
+
+        static boolean exists(Path indexFile) {
+            synchronized (cache) {
+                if (cache.containsKey(indexFile)) {
+                    return true;
+                }
+            }
+            return Files.exists(indexFile);
+        }
+
+        static void remember(Path indexFile, SegmentIndex index) {
+            synchronized (cache) {
+                cache.put(indexFile, index);
+            }
+        }
+
+        static void forget(Path indexFile) {
+            synchronized (cache) {
+                cache.remove(indexFile);
+            }
+        }
+
+        // Indexes the first limit bytes of an existing segment, reading it in blocks and
+        // splitting lines on '\n' so offsets stay exact byte positions. Its lines carry
+        // only "[HH:mm]", so each is dated by the segment's day; lines without a time
+        // inherit the previous line's. A trailing line without its '\n' is left out.
+        static SegmentIndex build(Path segment, LocalDate day, long limit) throws IOException {
+            SegmentIndex index = new SegmentIndex();
+            ZoneId zone = ZoneId.systemDefault();
+            long time = day.atStartOfDay(zone).toInstant().toEpochMilli();
+            InputStream raw = Files.newInputStream(segment);
+            if (segment.toString().endsWith(".gz")) {
+                raw = new GZIPInputStream(raw, BUILD_BUFFER_SIZE);
+            }
+            try (InputStream in = raw) {
+                byte[] buffer = new byte[BUILD_BUFFER_SIZE];
+                byte[] line = new byte[256];
+                int length = 0;
+                long offset = 0;
+                int read;
+                while (offset + length < limit
+                        && (read = in.read(buffer, 0, (int) Math.min(buffer.length, limit - offset - length))) > 0) {
+                    int start = 0;
+                    for (int i = 0; i < read; i++) {
+                        if (buffer[i] != '\n') {
+                            continue;
+                        }
+                        int end = i + 1;
+                        if (length + end - start > line.length) {
+                            line = Arrays.copyOf(line, Math.max(line.length * 2, length + end - start));
+                        }
+                        System.arraycopy(buffer, start, line, length, end - start);
+                        length += end - start;
+                        start = end;
+                        String text = lineText(line, length);
+                        if (text.length() >= 7 && text.charAt(0) == '[' && text.charAt(3) == ':' && text.charAt(6) == ']') {
+                            try {
+                                time = day.atTime(Integer.parseInt(text.substring(1, 3)), Integer.parseInt(text.substring(4, 6)))
+                                          .atZone(zone).toInstant().toEpochMilli();
+                            } catch (RuntimeException e) {
+                                // Not a timestamp after all; keep the previous time
+                            }
+                        }
+                        index.add(offset, length, time, text);
+                        offset += length;
+                        length = 0;
+                    }
+                    // The start of a line that continues in the next block
+                    if (length + read - start > line.length) {
+                        line = Arrays.copyOf(line, Math.max(line.length * 2, length + read - start));
+                    }
+                    System.arraycopy(buffer, start, line, length, read - start);
+                    length += read - start;
+                }
+            }
+            return index;
+        }
+
+        synchronized void save(Path indexFile) {
+            Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(lines);
+                out.writeLong(end);
+                out.writeLong(minTime);
+                out.writeLong(maxTime);
+                for (int i = 0; i < lines; i++) {
+                    out.writeLong(offsets[i]);
+                    out.writeLong(times[i]);
+                }
+                out.writeInt(terms.size());
+                for (Map.Entry<String, Postings> term : terms.entrySet()) {
+                    Postings postings = term.getValue();
+                    out.writeUTF(term.getKey());
+                    out.writeInt(postings.count);
+                    out.writeInt(postings.last);
+                    out.writeInt(postings.size);
+                    out.write(postings.data, 0, postings.size);
+                }
+            } catch (IOException e) {
+                System.err.println("Error saving search index " + indexFile + ": " + e.getMessage());
+                return;
+            }
+            try {
+                Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("Error saving search index " + indexFile + ": " + e.getMessage());
+            }
+        }
+
+        static SegmentIndex load(Path indexFile) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a search index: " + indexFile);
+                }
+                SegmentIndex index = new SegmentIndex();
+                index.lines = in.readInt();
+                index.end = in.readLong();
+                index.minTime = in.readLong();
+                index.maxTime = in.readLong();
+                index.offsets = new long[Math.max(1, index.lines)];
+                index.times = new long[Math.max(1, index.lines)];
+                for (int i = 0; i < index.lines; i++) {
+                    index.offsets[i] = in.readLong();
+                    index.times[i] = in.readLong();
+                }
+                int termCount = in.readInt();
+                for (int i = 0; i < termCount; i++) {
+                    String term = in.readUTF();
+                    Postings postings = new Postings();
+                    postings.count = in.readInt();
+                    postings.last = in.readInt();
+                    postings.size = in.readInt();
+                    postings.data = new byte[postings.size];
+                    in.readFully(postings.data);
+                    index.terms.put(term, postings);
+                }
+                return index;
+            }
+        }
+
+        private static int putVarint(byte[] data, int position, int value) {
+            while ((value & ~0x7f) != 0) {
+                data[position++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            data[position++] = (byte) value;
+            return position;
+        }
+    }
+
+    /**
+     * Group commit for room logs and message stores. Producers add lines to a lock-free
+     * queue; a single background thread drains whatever has accumulated into buffered
+     * writers and flushes every file it touched once per interval (and optionally
+     * fsyncs), so a burst of chat costs a few large writes instead of one syscall per line.
+     */
+    static final class LogWriter {
+        static final AtomicLong queueDepth = new AtomicLong();
+        static final LongAdder linesWritten = new LongAdder();
+        static final LongAdder flushCount = new LongAdder();
+        static final LongAdder flushNanos = new LongAdder();
+        static final LongAdder segmentsRotated = new LongAdder();
+        static volatile long maxFlushNanos;
+
+        /** A file written only by the log writer thread. */
+        interface Sink {
+            void write(Record record);
+
+            void flush(boolean sync);
+
+            void closeFile();
+        }
+
+        static final class Record {
+            final Sink sink;
+            final String line; // for a RoomLog
+            final MessageStore.Message message; // for a MessageStore
+            final long time;
+
+            Record(Sink sink, String line, MessageStore.Message message, long time) {
+                this.sink = sink;
+                this.line = line;
+                this.message = message;
+                this.time = time;
+            }
+
+            boolean isClose() {
+                return line == null && message == null;
+            }
+        }
+
+        private static final Queue<Record> queue = new ConcurrentLinkedQueue<>();
+        // Wake the writer early once this many lines are waiting, to bound the queue in a burst
+        private static final int WAKE_THRESHOLD = 8192;
+        private static final Thread thread = startThread();
+
+        private LogWriter() {
+        }
+
+        private static Thread startThread() {
+            Thread writer = new Thread(LogWriter::run, "room-log-writer");
+            writer.setDaemon(true);
+            writer.start();
+            // Whatever is still queued at exit goes out before the JVM stops
+            Runtime.getRuntime().addShutdownHook(new Thread(LogWriter::drainAndFlush, "room-log-shutdown"));
+            return writer;
+        }
+
+        // A null line closes the log
+        static void enqueue(RoomLog log, String line) {
+            offer(new Record(log, line, null, System.currentTimeMillis()));
+        }
+
+        // A null message closes the store
+        static void enqueue(MessageStore store, MessageStore.Message message) {
+            offer(new Record(store, null, message, 0));
+        }
+
+        private static void offer(Record record) {
+            queue.offer(record);
+            if (queueDepth.incrementAndGet() == WAKE_THRESHOLD) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        private static void run() {
+            long flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(LOG_FLUSH_MILLIS);
+            while (true) {
+                try {
+                    drainAndFlush();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                LockSupport.parkNanos(flushIntervalNanos);
+            }
+        }
+
+        // Writes and flushes everything queued so far, on the caller's thread. For tools
+        // such as the benchmarks; client requests must never wait on every room's files.
+        static void sync() {
+            drainAndFlush();
+        }
+
+        // Writer thread, the shutdown hook once the writer has stopped running, or sync
+        private static synchronized void drainAndFlush() {
+            Set<Sink> touched = new HashSet<>();
+            Record record;
+            while ((record = queue.poll()) != null) {
+                queueDepth.decrementAndGet();
+                if (record.isClose()) {
+                    record.sink.closeFile();
+                    touched.remove(record.sink);
+                } else {
+                    record.sink.write(record);
+                    touched.add(record.sink);
+                    if (record.line != null) {
+                        linesWritten.increment();
+                    }
+                }
+            }
+            if (touched.isEmpty()) {
+                return;
+            }
+            long start = System.nanoTime();
+            for (Sink sink : touched) {
+                sink.flush(LOG_FSYNC);
+            }
+            long elapsed = System.nanoTime() - start;
+            flushCount.increment();
+            flushNanos.add(elapsed);
+            if (elapsed > maxFlushNanos) {
+                maxFlushNanos = elapsed;
+            }
+        }
+    }
+
+    /**
+     * A room's messages as structured records in an append-only store under
+     * messages/<Room>/, split into segments named after the sequence number of their
+     * first record. Every message broadcast to the room gets the next room sequence
+     * number, so readers can ask for "everything from seq N" instead of parsing the
+     * text log. Records are written by the LogWriter together with the text log;
+     * readers map the segment files and start from a sparse index that remembers the
+     * offset of every INDEX_INTERVAL-th record.
+     *
+     * Record layout: int length of the rest, int CRC32 of the rest, long seq, long time,
+     * byte type, short sender length, sender and text as UTF-8. A torn record at the end
+     * of the last segment, left by a crash, is cut off when the store is opened.
+     */
+    static final class MessageStore implements LogWriter.Sink {
+        static final byte CHAT = 1;
+        static final byte NOTICE = 2;
+        static final LongAdder recordsWritten = new LongAdder();
+
+        private static final int INDEX_INTERVAL = 64;
+        private static final int HEADER_SIZE = 8;
+        private static final int FIXED_SIZE = 8 + 8 + 1 + 2;
+        // The first sequence number, zero-padded so names sort in order
+        private static final Pattern SEGMENT_NAME = Pattern.compile("(\\d{20})\\.seg");
+
+        static final class Message {
+            final long seq;
+            final long time;
+            final byte type;
+            final String sender; // empty for notices
+            final String text;
+
+            Message(long seq, long time, byte type, String sender, String text) {
+                this.seq = seq;
+                this.time = time;
+                this.type = type;
+                this.sender = sender;
+                this.text = text;
+            }
+        }
+
+        /** One segment file and the sparse index of where its records start. */
+        private static final class Segment {
+            final long baseSeq;
+            final Path path;
+            // Every INDEX_INTERVAL-th record's seq and offset, guarded by this
+            private long[] indexSeqs = new long[16];
+            private long[] indexOffsets = new long[16];
+            private int indexSize;
+            private boolean indexed;
+            // Bytes readers may see; only grows, and only after a flush
+            private volatile long end;
+            private MappedByteBuffer mapped;
+
+            Segment(long baseSeq, Path path) {
+                this.baseSeq = baseSeq;
+                this.path = path;
+            }
+
+            synchronized void addIndex(long seq, long offset) {
+                if (indexSize == indexSeqs.length) {
+                    indexSeqs = Arrays.copyOf(indexSeqs, indexSize * 2);
+                    indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+                }
+                indexSeqs[indexSize] = seq;
+                indexOffsets[indexSize] = offset;
+                indexSize++;
+            }
+
+            // Offset of the last indexed record at or before seq
+            synchronized long offsetFor(long seq) {
+                int low = 0;
+                int high = indexSize - 1;
+                long offset = 0;
+                while (low <= high) {
+                    int middle = (low + high) >>> 1;
+                    if (indexSeqs[middle] <= seq) {
+                        offset = indexOffsets[middle];
+                        low = middle + 1;
+                    } else {
+                        high = middle - 1;
+                    }
+                }
+                return offset;
+            }
+
+            // A read-only view of the first end bytes; the active segment is remapped
+            // when it has grown past the current mapping
+            synchronized ByteBuffer view(long end) throws IOException {
+                if (mapped == null || mapped.capacity() < end) {
+                    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+                    }
+                }
+                ByteBuffer view = mapped.duplicate();
+                view.limit((int) end);
+                return view;
+            }
+        }
+
+        private final String room;
+        private final Path dir;
+        private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+        // Guarded by this, so records reach the writer in sequence order
+        private long nextSeq = 1;
+        // Last sequence number readers can see in the files, and the messages after it,
+        // oldest first; both guarded by this, so every message is in one or the other
+        private long durableSeq;
+        private final ArrayDeque<Message> unflushed = new ArrayDeque<>();
+        // Owned by the log writer thread
+        private OutputStream out;
+        private FileChannel channel;
+        private Segment active;
+        private long activeBytes;
+        private long writtenSeq;
+        private int sinceIndex;
+        private boolean failed;
+        private boolean dirty;
+        private final ByteArrayOutputStream encoded = new ByteArrayOutputStream(256);
+        private final CRC32 crc = new CRC32();
+
+        // Finds the existing segments and the next sequence number; nothing is written
+        // until the first message
+        MessageStore(String room) {
+            this.room = room;
+            this.dir = Paths.get(MESSAGE_DIR, room);
+            try {
+                recover();
+            } catch (IOException e) {
+                System.err.println("Error opening message store for room " + room + ": " + e.getMessage());
+                failed = true;
+            }
+        }
+
+        private void recover() throws IOException {
+            File[] files = dir.toFile().listFiles();
+            if (files == null) {
+                return;
+            }
+            for (File file : files) {
+                Matcher match = SEGMENT_NAME.matcher(file.getName());
+                if (match.matches()) {
+                    long baseSeq = Long.parseLong(match.group(1));
+                    Segment segment = new Segment(baseSeq, file.toPath());
+                    segment.end = file.length();
+                    segments.put(baseSeq, segment);
+                }
+            }
+            Map.Entry<Long, Segment> last = segments.lastEntry();
+            if (last == null) {
+                return;
+            }
+            // Only the last segment can end in a torn record
+            Segment segment = last.getValue();
+            long valid = 0;
+            long lastSeq = segment.baseSeq - 1;
+            int count = 0;
+            try (FileChannel file = FileChannel.open(segment.path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer records = segment.end == 0 ? ByteBuffer.allocate(0)
+                    : file.map(FileChannel.MapMode.READ_ONLY, 0, segment.end);
+                CRC32 check = new CRC32();
+                while (records.remaining() >= HEADER_SIZE) {
+                    int position = records.position();
+                    int length = records.getInt(position);
+                    if (length < FIXED_SIZE || length > records.remaining() - HEADER_SIZE) {
+                        break;
+                    }
+                    ByteBuffer body = records.duplicate();
+                    body.position(position + HEADER_SIZE).limit(position + HEADER_SIZE + length);
+                    check.reset();
+                    check.update(body);
+                    if ((int) check.getValue() != records.getInt(position + 4)) {
+                        break;
+                    }
+                    lastSeq = records.getLong(position + HEADER_SIZE);
+                    if (count++ % INDEX_INTERVAL == 0) {
+                        segment.addIndex(lastSeq, position);
+                    }
+                    records.position(position + HEADER_SIZE + length);
+                    valid = records.position();
+                }
+                if (valid < segment.end) {
+                    System.err.println("Truncating " + (segment.end - valid) + " bytes of incomplete records in "
+                                       + segment.path);
+                    file.truncate(valid);
+                    segment.end = valid;
+                }
+            }
+            segment.indexed = true;
+            nextSeq = lastSeq + 1;
+            synchronized (this) {
+                durableSeq = lastSeq;
+            }
+            writtenSeq = lastSeq;
+            sinceIndex = count % INDEX_INTERVAL;
+            active = segment;
+            activeBytes = valid;
+        }
+
+        // Assigns the message its sequence number; it reaches the file on the log writer
+        // thread, and until the next flush readers get it from memory
+        Message append(byte type, String sender, String text) {
+            synchronized (this) {
+                Message message = new Message(nextSeq++, System.currentTimeMillis(), type, sender, text);
+                unflushed.addLast(message);
+                LogWriter.enqueue(this, message);
+                return message;
+            }
+        }
+
+        // The sequence number of the newest message, or 0 for none
+        synchronized long lastSeq() {
+            return nextSeq - 1;
+        }
+
+        // Anything appended before this still gets written
+        void close() {
+            LogWriter.enqueue(this, null);
+        }
+
+        // Log writer thread only, as are the methods below up to read
+        @Override
+        public void write(LogWriter.Record record) {
+            Message message = record.message;
+            if (failed) {
+                // Never reaching the file, so no longer kept for readers either
+                synchronized (this) {
+                    unflushed.remove(message);
+                }
+                return;
+            }
+            try {
+                byte[] sender = message.sender.getBytes(StandardCharsets.UTF_8);
+                byte[] text = message.text.getBytes(StandardCharsets.UTF_8);
+                if (out == null || activeBytes >= MESSAGE_SEGMENT_BYTES) {
+                    openSegment(message.seq);
+                }
+                encoded.reset();
+                DataOutputStream body = new DataOutputStream(encoded);
+                body.writeLong(message.seq);
+                body.writeLong(message.time);
+                body.writeByte(message.type);
+                body.writeShort(Math.min(sender.length, 0xffff));
+                body.write(sender, 0, Math.min(sender.length, 0xffff));
+                body.write(text);
+                crc.reset();
+                crc.update(encoded.toByteArray(), 0, encoded.size());
+                DataOutputStream file = new DataOutputStream(out);
+                file.writeInt(encoded.size());
+                file.writeInt((int) crc.getValue());
+                encoded.writeTo(out);
+                if (sinceIndex++ % INDEX_INTERVAL == 0) {
+                    active.addIndex(message.seq, activeBytes);
+                }
+                activeBytes += HEADER_SIZE + encoded.size();
+                writtenSeq = message.seq;
+                dirty = true;
+                recordsWritten.increment();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void openSegment(long baseSeq) throws IOException {
+            closeFile();
+            if (active == null || activeBytes >= MESSAGE_SEGMENT_BYTES) {
+                Files.createDirectories(dir);
+                active = new Segment(baseSeq, dir.resolve(String.format("%020d.seg", baseSeq)));
+                active.indexed = true;
+                activeBytes = 0;
+                sinceIndex = 0;
+                segments.put(baseSeq, active);
+            }
+            FileOutputStream file = new FileOutputStream(active.path.toFile(), true);
+            channel = file.getChannel();
+            out = new BufferedOutputStream(file, LOG_BUFFER_SIZE);
+        }
+
+        @Override
+        public void flush(boolean sync) {
+            if (!dirty || out == null) {
+                return;
+            }
+            dirty = false;
+            try {
+                out.flush();
+                if (sync) {
+                    channel.force(false);
+                }
+                active.end = activeBytes;
+                synchronized (this) {
+                    durableSeq = writtenSeq;
+                    while (!unflushed.isEmpty() && unflushed.peekFirst().seq <= durableSeq) {
+                        unflushed.pollFirst();
+                    }
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        @Override
+        public void closeFile() {
+            flush(LOG_FSYNC);
+            if (out == null) {
+                return;
+            }
+            try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            out = null;
+        }
+
+        // Stops recording this room rather than failing on every message
+        private void fail(IOException e) {
+            System.err.println("Error writing message store for room " + room + ": " + e.getMessage());
+            e.printStackTrace();
+            failed = true;
+            closeFile();
+        }
+
+        /**
+         * Up to limit messages from fromSeq on, oldest first: from the files as far as
+         * they have been flushed, then from the messages still waiting for the log
+         * writer. Never waits for the writer.
+         */
+        List<Message> read(long fromSeq, int limit) throws IOException {
+            long lastSeq;
+            List<Message> pending;
+            synchronized (this) {
+                lastSeq = durableSeq;
+                pending = new ArrayList<>(unflushed);
+            }
+            List<Message> messages = new ArrayList<>();
+            readFiles(fromSeq, limit, lastSeq, messages);
+            for (Message message : pending) {
+                if (messages.size() >= limit) {
+                    break;
+                }
+                if (message.seq >= fromSeq && message.seq > lastSeq) {
+                    messages.add(message);
+                }
+            }
+            return messages;
+        }
+
+        // Records from fromSeq through lastSeq, which the files are known to hold
+        private void readFiles(long fromSeq, int limit, long lastSeq, List<Message> messages) throws IOException {
+            Map.Entry<Long, Segment> entry = segments.floorEntry(Math.max(fromSeq, 1));
+            if (entry == null) {
+                entry = segments.firstEntry();
+            }
+            while (entry != null && messages.size() < limit && fromSeq <= lastSeq) {
+                Segment segment = entry.getValue();
+                long end = segment.end;
+                if (end > 0) {
+                    ensureIndexed(segment, end);
+                    ByteBuffer records = segment.view(end);
+                    records.position((int) segment.offsetFor(fromSeq));
+                    while (records.remaining() >= HEADER_SIZE && messages.size() < limit) {
+                        int position = records.position();
+                        int length = records.getInt(position);
+                        long seq = records.getLong(position + HEADER_SIZE);
+                        if (seq > lastSeq) {
+                            return;
+                        }
+                        if (seq >= fromSeq) {
+                            messages.add(decode(records, position + HEADER_SIZE, length));
+                        }
+                        records.position(position + HEADER_SIZE + length);
+                    }
+                }
+                entry = segments.higherEntry(entry.getKey());
+            }
+        }
+
+        // The newest count messages, oldest first
+        List<Message> last(int count) throws IOException {
+            return read(Math.max(1, lastSeq() - count + 1), count);
+        }
+
+        // Segments written before this run are indexed by hopping over record headers the
+        // first time they are read
+        private static void ensureIndexed(Segment segment, long end) throws IOException {
+            synchronized (segment) {
+                if (segment.indexed) {
+                    return;
+                }
+                ByteBuffer records = segment.view(end);
+                int count = 0;
+                while (records.remaining() >= HEADER_SIZE) {
+                    int position = records.position();
+                    if (count++ % INDEX_INTERVAL == 0) {
+                        segment.addIndex(records.getLong(position + HEADER_SIZE), position);
+                    }
+                    records.position(position + HEADER_SIZE + records.getInt(position));
+                }
+                segment.indexed = true;
+            }
+        }
+
+        private static Message decode(ByteBuffer records, int position, int length) {
+            long seq = records.getLong(position);
+            long time = records.getLong(position + 8);
+            byte type = records.get(position + 16);
+            int senderLength = records.getShort(position + 17) & 0xffff;
+            int textLength = length - FIXED_SIZE - senderLength;
+            byte[] bytes = new byte[senderLength + textLength];
+            ByteBuffer body = records.duplicate();
+            body.position(position + FIXED_SIZE).limit(position + length);
+            body.get(bytes);
+            return new Message(seq, time, type, new String(bytes, 0, senderLength, StandardCharsets.UTF_8),
+                               new String(bytes, senderLength, textLength, StandardCharsets.UTF_8));
+        }
+    }
+    
+    /**
+     * The "HH:mm" stamp on chat lines. Every message used to format the current time
+     * from scratch; this keeps the text for the current minute and only formats again
+     * when a call lands outside it, so the stamp is a volatile read and a compare.
+     */
+    static final class MinuteClock {
+        private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("HH:mm");
+
+        private static final class Minute {
+            final long start;
+            final long end;
+            final String text;
+
+            Minute(long start, String text) {
+                this.start = start;
+                this.end = start + 60_000;
+                this.text = text;
+            }
+        }
+
+        private static volatile Minute current = minuteAt(System.currentTimeMillis());
+
+        private MinuteClock() {
+        }
+
+        static String now() {
+            long now = System.currentTimeMillis();
+            Minute minute = current;
+            // Also refreshes if the clock is set back
+            if (now >= minute.end || now < minute.start) {
+                minute = minuteAt(now);
+                current = minute;
+            }
+            return minute.text;
+        }
+
+        private static Minute minuteAt(long millis) {
+            ZonedDateTime time = Instant.ofEpochMilli(millis).atZone(ZoneId.systemDefault())
+                .truncatedTo(ChronoUnit.MINUTES);
+            return new Minute(time.toInstant().toEpochMilli(), time.format(FORMAT));
+        }
+    }
+
+    /**
+     * Builds chat and whisper lines in a StringBuilder kept per thread, so the only
+     * allocation left per message is the finished String. A builder that grew past
+     * MAX_RETAINED_CHARS for one long message is dropped rather than kept by every
+     * client thread.
+     */
+    static final class MessageFormatter {
+        private static final int MAX_RETAINED_CHARS = 4096;
+        private static final ThreadLocal<StringBuilder> buffers =
+            ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+        private MessageFormatter() {
+        }
+
+        // [HH:mm] user@room: text
+        static String chat(String user, String room, String text) {
+            StringBuilder line = start();
+            line.append(user).append('@').append(room).append(": ").append(text);
+            return finish(line);
+        }
+
+        // [HH:mm] [PRIVATE] user whispers: text
+        static String whisper(String user, String text) {
+            StringBuilder line = start();
+            line.append("[PRIVATE] ").append(user).append(" whispers: ").append(text);
+            return finish(line);
+        }
+
+        private static StringBuilder start() {
+            StringBuilder line = buffers.get();
+            line.setLength(0);
+            return line.append('[').append(MinuteClock.now()).append("] ");
+        }
+
+        private static String finish(StringBuilder line) {
+            String text = line.toString();
+            if (line.capacity() > MAX_RETAINED_CHARS) {
+                buffers.remove();
+            }
+            return text;
+        }
+    }
+
+    /**
+     * Latencies in nanoseconds, counted in buckets that double in width every 16
+     * buckets, so any value is reported within about 6%. The buckets are one fixed
+     * array of atomic counters, so recording allocates nothing and takes no lock;
+     * a report taken while others record may be off by the samples in flight.
+     */
+    static final class LatencyHistogram {
+        private static final int SUB_BUCKETS = 16;
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final AtomicLong max = new AtomicLong();
+        private final LongAdder sum = new LongAdder();
+
+        void record(long nanos) {
+            nanos = Math.max(0, nanos);
+            counts.incrementAndGet(index(nanos));
+            sum.add(nanos);
+            long seen;
+            while (nanos > (seen = max.get()) && !max.compareAndSet(seen, nanos)) {
+                // Lost to another writer; retry against its value
+            }
+        }
+
+        long count() {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                total += counts.get(i);
+            }
+            return total;
+        }
+
+        // The largest value in the bucket holding the given fraction of samples
+        long percentile(double fraction) {
+            long target = Math.max(1, (long) Math.ceil(fraction * count()));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= target) {
+                    return Math.min(highestIn(i), max.get());
+                }
+            }
+            return 0;
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        // Total of every value recorded, for the summary's _sum
+        long sum() {
+            return sum.sum();
+        }
+
+        void reset() {
+            for (int i = 0; i < counts.length(); i++) {
+                counts.set(i, 0);
+            }
+            max.set(0);
+            sum.reset();
+        }
+
+        private static int index(long value) {
+            if (value < 2 * SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - 4;
+            return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+        }
+
+        private static long highestIn(int index) {
+            if (index < 2 * SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / SUB_BUCKETS - 1;
+            long top = index % SUB_BUCKETS + SUB_BUCKETS;
+            return ((top + 1) << shift) - 1;
+        }
+    }
+
+    /**
+     * One latency histogram per stage a chat line passes through, kept for the whole
+     * server and for each room. Dispatch covers all the handling of one line, so it
+     * includes the format, log and fan-out stages of a chat message. Write runs from a
+     * room message being queued for a member to its bytes reaching that member's socket;
+     * it is only kept for the whole server, since queues do not know their rooms.
+     */
+    static final class StageLatency {
+        enum Stage {
+            PARSE("parse"),
+            DISPATCH("dispatch"),
+            FORMAT("format"),
+            LOG("log enqueue"),
+            FANOUT("fan-out"),
+            WRITE("write");
+
+            final String label;
+
+            Stage(String label) {
+                this.label = label;
+            }
+        }
+
+        static final StageLatency global = new StageLatency();
+
+        private final LatencyHistogram[] stages = new LatencyHistogram[Stage.values().length];
+
+        StageLatency() {
+            for (int i = 0; i < stages.length; i++) {
+                stages[i] = new LatencyHistogram();
+            }
+        }
+
+        // Into the global histograms and, when there is one, the room's
+        static void record(ChatRoom room, Stage stage, long nanos) {
+            global.stages[stage.ordinal()].record(nanos);
+            if (room != null) {
+                room.latency.stages[stage.ordinal()].record(nanos);
+            }
+        }
+
+        LatencyHistogram histogram(Stage stage) {
+            return stages[stage.ordinal()];
+        }
+
+        void reset() {
+            for (LatencyHistogram histogram : stages) {
+                histogram.reset();
+            }
+        }
+
+        // One line per stage that has samples, times in microseconds
+        List<String> report() {
+            List<String> lines = new ArrayList<>();
+            lines.add(String.format("%-12s %10s %10s %10s %10s %10s", "stage", "count", "p50 us", "p99 us",
+                                    "p99.9 us", "max us"));
+            for (Stage stage : Stage.values()) {
+                LatencyHistogram histogram = stages[stage.ordinal()];
+                long count = histogram.count();
+                if (count > 0) {
+                    lines.add(String.format("%-12s %10d %10.1f %10.1f %10.1f %10.1f", stage.label, count,
+                                            histogram.percentile(0.50) / 1000.0, histogram.percentile(0.99) / 1000.0,
+                                            histogram.percentile(0.999) / 1000.0, histogram.max() / 1000.0));
+                }
+            }
+            return lines;
+        }
+    }
+
+    /**
+     * Admin endpoint on the JDK's built-in HTTP server, bound to METRICS_ADDRESS so it
+     * is local unless configured otherwise. GET /metrics is the Prometheus text format:
+     * counters only ever grow, so rates (messages, bytes, transfers) come from rate() on
+     * the graphing side, and gauges are read when scraped. GET /latency is the /latency
+     * report, for the whole server or ?room=Name. Requests are served one at a time on
+     * a daemon thread, away from client I/O.
+     */
+    static final class Metrics {
+        static final LongAdder bytesIn = new LongAdder();
+        static final LongAdder bytesOut = new LongAdder();
+        static final LongAdder fileUploads = new LongAdder();
+        static final LongAdder voiceUploads = new LongAdder();
+        static final LongAdder uploadBytes = new LongAdder();
+        static final LongAdder fileDownloads = new LongAdder();
+        static final LongAdder voiceDownloads = new LongAdder();
+        static final LongAdder downloadBytes = new LongAdder();
+
+        private Metrics() {
+        }
+
+        static void start() {
+            if (METRICS_PORT <= 0) {
+                return;
+            }
+            try {
+                HttpServer server = HttpServer.create(new InetSocketAddress(METRICS_ADDRESS, METRICS_PORT), 0);
+                server.createContext("/metrics", exchange -> respond(exchange, scrape()));
+                server.createContext("/latency", exchange -> {
+                    String query = exchange.getRequestURI().getQuery();
+                    StageLatency latency = StageLatency.global;
+                    if (query != null && query.startsWith("room=")) {
+                        ChatRoom room = chatRooms.get(query.substring("room=".length()));
+                        if (room == null) {
+                            exchange.sendResponseHeaders(404, -1);
+                            exchange.close();
+                            return;
+                        }
+                        latency = room.latency;
+                    }
+                    respond(exchange, String.join("\n", latency.report()) + "\n");
+                });
+                server.setExecutor(Executors.newSingleThreadExecutor(task -> {
+                    Thread thread = new Thread(task, "metrics-http");
+                    thread.setDaemon(true);
+                    return thread;
+                }));
+                server.start();
+                System.out.println("Metrics on http://" + METRICS_ADDRESS + ":" + METRICS_PORT + "/metrics");
+            } catch (IOException e) {
+                // Chat still works without them
+                System.err.println("Could not start metrics endpoint: " + e.getMessage());
+            }
+        }
+
+        private static void respond(HttpExchange exchange, String body) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                exchange.close();
+                return;
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+
+        static String scrape() {
+            StringBuilder out = new StringBuilder(4096);
+            gauge(out, "chat_connected_clients", "Logged-in clients", connectedClients.size());
+            gauge(out, "chat_suspended_sessions", "Dropped sessions held for resuming", suspendedSessions.size());
+
+            header(out, "chat_room_members", "gauge", "Members of each room");
+            for (ChatRoom room : chatRooms.values()) {
+                sample(out, "chat_room_members", "room", room.name, room.getMemberCount());
+            }
+            header(out, "chat_room_messages_total", "counter",
+                   "Chat messages and join/leave notices published in each room");
+            for (ChatRoom room : chatRooms.values()) {
+                String prefix = "chat_room_messages_total{room=\"" + escape(room.name) + "\",kind=\"";
+                out.append(prefix).append("chat\"} ").append(room.chatsPublished.sum()).append('\n');
+                out.append(prefix).append("notice\"} ").append(room.noticesPublished.sum()).append('\n');
+            }
+
+            counter(out, "chat_bytes_received_total", "Bytes read from client sockets", bytesIn.sum());
+            counter(out, "chat_bytes_sent_total", "Bytes written to client sockets", bytesOut.sum());
+            header(out, "chat_uploads_total", "counter", "Completed uploads");
+            sample(out, "chat_uploads_total", "kind", "file", fileUploads.sum());
+            sample(out, "chat_uploads_total", "kind", "voice", voiceUploads.sum());
+            counter(out, "chat_upload_bytes_total", "Bytes of completed uploads", uploadBytes.sum());
+            header(out, "chat_downloads_total", "counter", "Downloads started");
+            sample(out, "chat_downloads_total", "kind", "file", fileDownloads.sum());
+            sample(out, "chat_downloads_total", "kind", "voice", voiceDownloads.sum());
+            counter(out, "chat_download_bytes_total", "File and voice bytes written to clients", downloadBytes.sum());
+
+            long queued = 0;
+            long deepest = 0;
+            for (ClientHandler client : connectedClients.values()) {
+                int depth = client.connection.outbound().depth();
+                queued += depth;
+                deepest = Math.max(deepest, depth);
+            }
+            gauge(out, "chat_outbound_queued", "Buffers waiting in all clients' outbound queues", queued);
+            gauge(out, "chat_outbound_queued_max", "Buffers waiting in the fullest outbound queue", deepest);
+            counter(out, "chat_outbound_dropped_total", "Room messages dropped for slow clients",
+                    OutboundQueue.totalDropped.sum());
+            counter(out, "chat_outbound_coalesced_total", "Room messages merged for slow clients",
+                    OutboundQueue.totalCoalesced.sum());
+            gauge(out, "chat_log_queue_depth", "Log and store records waiting for the writer thread",
+                  LogWriter.queueDepth.get());
+            counter(out, "chat_log_lines_total", "Room log lines written", LogWriter.linesWritten.sum());
+            counter(out, "chat_store_records_total", "Message store records written",
+                    MessageStore.recordsWritten.sum());
+
+            header(out, "chat_command_invocations_total", "counter", "Slash commands run");
+            for (ChatCommand command : ClientHandler.COMMANDS.values()) {
+                sample(out, "chat_command_invocations_total", "command", command.name, command.invocations.sum());
+            }
+            header(out, "chat_stage_latency_seconds", "summary", "Time spent in each stage of handling a message");
+            for (StageLatency.Stage stage : StageLatency.Stage.values()) {
+                LatencyHistogram histogram = StageLatency.global.histogram(stage);
+                for (double quantile : new double[] {0.5, 0.99, 0.999}) {
+                    out.append("chat_stage_latency_seconds{stage=\"").append(stage.label)
+                       .append("\",quantile=\"").append(quantile).append("\"} ")
+                       .append(histogram.percentile(quantile) / 1e9).append('\n');
+                }
+                out.append("chat_stage_latency_seconds_sum{stage=\"").append(stage.label).append("\"} ")
+                   .append(histogram.sum() / 1e9).append('\n');
+                sample(out, "chat_stage_latency_seconds_count", "stage", stage.label, histogram.count());
+            }
+
+            header(out, "jvm_gc_collections_total", "counter", "Garbage collections");
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                sample(out, "jvm_gc_collections_total", "gc", gc.getName(), Math.max(0, gc.getCollectionCount()));
+            }
+            header(out, "jvm_gc_seconds_total", "counter", "Time spent in garbage collection");
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                out.append("jvm_gc_seconds_total{gc=\"").append(escape(gc.getName())).append("\"} ")
+                   .append(Math.max(0, gc.getCollectionTime()) / 1000.0).append('\n');
+            }
+            MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+            gauge(out, "jvm_heap_used_bytes", "Heap in use", heap.getUsed());
+            gauge(out, "jvm_heap_max_bytes", "Largest the heap may grow", heap.getMax());
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            gauge(out, "jvm_threads", "Live threads", threads.getThreadCount());
+            gauge(out, "jvm_threads_peak", "Most live threads since start", threads.getPeakThreadCount());
+            return out.toString();
+        }
+
+        private static void gauge(StringBuilder out, String name, String help, long value) {
+            header(out, name, "gauge", help);
+            out.append(name).append(' ').append(value).append('\n');
+        }
+
+        private static void counter(StringBuilder out, String name, String help, long value) {
+            header(out, name, "counter", help);
+            out.append(name).append(' ').append(value).append('\n');
+        }
+
+        private static void header(StringBuilder out, String name, String type, String help) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+
+        private static void sample(StringBuilder out, String name, String label, String value, long sample) {
+            out.append(name).append('{').append(label).append("=\"").append(escape(value)).append("\"} ")
+               .append(sample).append('\n');
+        }
+
+        // Label values are user-chosen room names
+        private static String escape(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+    }
+
+    /**
+     * A slash command: the handler behind one name in ClientHandler's command table,
+     * with its invocation count, time spent and slowest run, kept in LongAdders and a
+     * LongAccumulator so concurrent clients do not contend on them or lose a maximum.
+     */
+    static final class ChatCommand {
+        interface Handler {
+            void run(ClientHandler client, String args);
+        }
+
+        final String name;
+        final LongAdder invocations = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        private final Handler handler;
+
+        private ChatCommand(String name, Handler handler) {
+            this.name = name;
+            this.handler = handler;
+        }
+
+        static void register(Map<String, ChatCommand> table, String name, Handler handler) {
+            table.put(name, new ChatCommand(name, handler));
+        }
+
+        void invoke(ClientHandler client, String args) {
+            long start = System.nanoTime();
+            try {
+                handler.run(client, args);
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                invocations.increment();
+                nanos.add(elapsed);
+                maxNanos.accumulate(elapsed);
+            }
+        }
+    }
+
+    static class ClientHandler implements Runnable {
+        private final SocketChannel channel;
+        private Connection connection;
+        private static final Map<String, ChatCommand> COMMANDS = registerCommands();
+        private InboundDecoder decoder = new LineDecoder();
+        private volatile boolean binary;
+        private volatile int version; // Binary protocol version agreed at connect
+        private volatile String resumeToken; // Version 3: lets a dropped connection resume
+        private InputState state = InputState.USERNAME;
+        private String username;
+        private volatile ChatRoom currentRoom;
+        private final AtomicBoolean disconnected = new AtomicBoolean();
+
+        // Legacy single upload driven by the input state machine
+        private String pendingUploadName;
+        private long pendingVoiceDuration;
+        private Upload upload;
+        // Binary protocol: uploads in flight, keyed by client-chosen (odd) stream id
+        private final Map<Integer, Upload> uploadStreams = new HashMap<>();
+        // Server-initiated download streams use even ids; resumed downloads take one from a
+        // digest thread
+        private final AtomicInteger nextStreamId = new AtomicInteger(2);
+
+        // What the next line (or run of raw bytes) from the client means
+        private enum InputState {
+            USERNAME,
+            COMMAND,
+            FILE_NAME,
+            FILE_SIZE,
+            FILE_DATA,
+            VOICE_DURATION,
+            VOICE_SIZE,
+            VOICE_DATA
+        }
+
+        public ClientHandler(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // Blocking mode: this thread owns the socket and drives the decoder itself
+        @Override
+        public void run() {
+            try {
+                attach(new BlockingConnection(channel));
+                start();
+                while (isOpen()) {
+                    int read = channel.read(decoder.writableBuffer());
+                    if (read < 0) {
+                        break;
+                    }
+                    Metrics.bytesIn.add(read);
+                    decoder.decode(this);
+                }
+            } catch (IOException e) {
+                // Expected when we closed the channel ourselves (e.g. slow-client disconnect)
+                if (isOpen()) {
+                    e.printStackTrace();
+                }
+            } finally {
+                disconnect();
+            }
+        }
+
+        void attach(Connection connection) {
+            this.connection = connection;
+        }
+
+        boolean isOpen() {
+            return !disconnected.get() && connection.isOpen();
+        }
+
+        void start() {
+            sendMessage("Enter username:");
+        }
+
+        // Selector mode: run on the client pool, never on the selector thread, once the
+        // channel is readable; see NioConnection
+        void onReadable() throws IOException {
+            int read = channel.read(decoder.writableBuffer());
+            if (read < 0) {
+                throw new EOFException("Client closed connection");
+            }
+            Metrics.bytesIn.add(read);
+            decoder.decode(this);
+        }
+
+        // Binary mode: one complete frame from the FrameDecoder
+        void onFrame(byte type, byte flags, int streamId, ByteBuffer payload) {
+            switch (type) {
+                case Frames.CHAT:
+                    // Typed as chat by the client, so skip the command matching entirely
+                    if (state == InputState.COMMAND) {
+                        processMessage(Frames.text(payload), true);
+                    } else {
+                        onLine(Frames.text(payload));
+                    }
+                    break;
+                case Frames.COMMAND:
+                    onLine(Frames.text(payload));
+                    break;
+                case Frames.CONTROL:
+                    String control = Frames.text(payload);
+                    if (control.startsWith("RESUME\n")) {
+                        if (state == InputState.USERNAME) {
+                            resume(control.split("\n", -1));
+                        } else {
+                            sendControl("RESUME_FAILED");
+                        }
+                        break;
+                    }
+                    if (control.startsWith("FETCH\n")) {
+                        if (state == InputState.USERNAME) {
+                            fetch(control.split("\n", -1));
+                        } else {
+                            sendMessage("ERROR: FETCH must be sent in place of the username");
+                        }
+                        break;
+                    }
+                    if (state == InputState.COMMAND && control.equals("BYE")) {
+                        // Leaving on purpose: nothing to hold for a resume
+                        resumeToken = null;
+                        disconnect();
+                        break;
+                    }
+                    // Upload headers travel as one control frame, one field per line
+                    for (String line : control.split("\n", -1)) {
+                        onLine(line);
+                    }
+                    break;
+                case Frames.DATA:
+                    Upload stream = uploadStreams.get(streamId);
+                    if (stream == null) {
+                        // Data for an upload announced over CONTROL frames (/sendfile, /sendvoice)
+                        decoder.onData(this, payload);
+                    } else {
+                        onStreamData(streamId, stream, payload, (flags & Frames.FLAG_END_STREAM) != 0);
+                    }
+                    break;
+                case Frames.STREAM_OPEN:
+                    onStreamOpen(streamId, Frames.text(payload).split("\n", -1));
+                    break;
+                case Frames.STREAM_RESET:
+                    Upload cancelled = uploadStreams.remove(streamId);
+                    if (cancelled != null) {
+                        cancelled.abort();
+                    }
+                    connection.outbound().cancelTransfer(streamId);
+                    break;
+                default:
+                    sendMessage("ERROR: Unknown frame type " + type);
+                    break;
+            }
+        }
+
+        void onLine(String line) {
+            switch (state) {
+                case USERNAME:
+                    authenticate(line);
+                    break;
+                case COMMAND:
+                    processMessage(line, false);
+                    break;
+                case FILE_NAME:
+                    onUploadFileName(line);
+                    break;
+                case FILE_SIZE:
+                    onUploadFileSize(line);
+                    break;
+                case VOICE_DURATION:
+                    onUploadVoiceDuration(line);
+                    break;
+                case VOICE_SIZE:
+                    onUploadVoiceSize(line);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        void onRawData(ByteBuffer data, boolean last) {
+            try {
+                upload.write(data);
+                if (last) {
+                    upload.finish();
+                    upload = null;
+                    state = InputState.COMMAND;
+                }
+            } catch (IOException e) {
+                upload.fail(e);
+                // Keep discarding whatever the client still has in flight for this transfer
+                if (last || decoder.rawRemaining() == 0) {
+                    upload = null;
+                    state = InputState.COMMAND;
+                }
+            }
+        }
+
+        // Binary protocol: the client announces an upload on its own stream so that chat
+        // and other transfers keep flowing while the bytes arrive.
+        // Fields: FILE|VOICE, file name, size[, duration in ms[, SHA-256]]. A file announced
+        // with its digest (protocol version 2 and later) waits for UPLOAD_COMPLETE or UPLOAD_CONTINUE
+        // on its stream before sending any bytes, so content we already hold is never sent.
+        private void onStreamOpen(int streamId, String[] fields) {
+            Upload stream;
+            String digest;
+            try {
+                boolean voice = "VOICE".equals(fields[0]);
+                long duration = voice && fields.length > 3 ? Long.parseLong(fields[3]) : 0;
+                stream = new Upload(voice, fields[1], Long.parseLong(fields[2]), duration);
+                digest = !voice && fields.length > 4 && !fields[4].isEmpty() ? fields[4] : null;
+            } catch (RuntimeException e) {
+                sendMessage("ERROR: Invalid stream header");
+                sendReset(streamId);
+                return;
+            }
+            if (uploadStreams.containsKey(streamId) || uploadStreams.size() >= MAX_STREAMS_PER_CLIENT) {
+                sendMessage("ERROR: Too many transfers in progress");
+                sendReset(streamId);
+                return;
+            }
+            if (digest != null && stream.reuse(digest)) {
+                connection.send(Frames.encode(Frames.CONTROL, streamId, "UPLOAD_COMPLETE"));
+                return;
+            }
+            if (!stream.open()) {
+                sendReset(streamId);
+                return;
+            }
+            if (stream.size == 0) {
+                stream.finish();
+                if (digest != null) {
+                    connection.send(Frames.encode(Frames.CONTROL, streamId, "UPLOAD_COMPLETE"));
+                }
+                return;
+            }
+            uploadStreams.put(streamId, stream);
+            if (digest != null) {
+                connection.send(Frames.encode(Frames.CONTROL, streamId, "UPLOAD_CONTINUE"));
+            }
+        }
+
+        private void onStreamData(int streamId, Upload stream, ByteBuffer payload, boolean end) {
+            try {
+                stream.write(payload);
+                if (end || stream.received >= stream.size) {
+                    uploadStreams.remove(streamId);
+                    stream.finish();
+                }
+            } catch (IOException e) {
+                uploadStreams.remove(streamId);
+                stream.fail(e);
+                sendReset(streamId);
+            }
+        }
+
+        private void sendReset(int streamId) {
+            connection.send(Frames.encode(Frames.STREAM_RESET, streamId, ""));
+        }
+
+        private void listAvailableRooms() {
+            sendMessage("Available rooms:");
+            for (ChatRoom room : chatRooms.values()) {
+                sendMessage(room.name + " (" + room.getMemberCount() + " members)");
+            }
+        }
+
+        private void authenticate(String name) {
+            if (!binary && name.startsWith(Frames.HELLO_PREFIX)) {
+                negotiateProtocol(name);
+                return;
+            }
+
+            if (name == null || name.trim().isEmpty()) {
+                sendMessage("Invalid username");
+                connection.close();
+                return;
+            }
+
+            if (connectedClients.putIfAbsent(name, this) != null) {
+                sendMessage("Username already exists");
+                connection.close();
+                return;
+            }
+            // Held for a dropped session until it resumes or expires
+            if (suspendedSessions.containsKey(name)) {
+                connectedClients.remove(name, this);
+                sendMessage("Username already exists");
+                connection.close();
+                return;
+            }
+
+            username = name;
+            state = InputState.COMMAND;
+            issueResumeToken();
+            Mailboxes.remember(name);
+
+            // Default to General room
+            currentRoom = chatRooms.get("General");
+            currentRoom.addMember(this);
+
+            // List available rooms
+            listAvailableRooms();
+            deliverMailbox();
+        }
+
+        // The client sent the binary preamble in place of a username: acknowledge it in
+        // text, then switch both directions to frames. The username follows as a frame.
+        private void negotiateProtocol(String hello) {
+            int version;
+            try {
+                version = Integer.parseInt(hello.substring(Frames.HELLO_PREFIX.length()).trim());
+            } catch (NumberFormatException e) {
+                sendMessage("Invalid username");
+                connection.close();
+                return;
+            }
+            version = Math.min(version, Frames.VERSION);
+            sendMessage(Frames.HELLO_PREFIX + version);
+            this.version = version;
+            binary = true;
+            decoder = new FrameDecoder();
+        }
+
+        // Version 3 clients get a token they can present to resume after a dropped
+        // connection, replaced on every login and resume
+        private void issueResumeToken() {
+            if (isSequenced() && RESUME_GRACE_MILLIS > 0) {
+                resumeToken = SuspendedSession.newToken();
+                sendControl("RESUME_TOKEN", username, resumeToken);
+            }
+        }
+
+        // Fields: RESUME, username, token, room, last sequence number seen in that room.
+        // Takes the place of the username; on failure the client logs in normally.
+        private void resume(String[] fields) {
+            SuspendedSession session = fields.length == 5 ? suspendedSessions.get(fields[1]) : null;
+            long seq;
+            try {
+                seq = fields.length == 5 ? Long.parseLong(fields[4]) : -1;
+            } catch (NumberFormatException e) {
+                seq = -1;
+            }
+            if (session == null || !session.matches(fields[2]) || seq < 0) {
+                sendControl("RESUME_FAILED");
+                return;
+            }
+            if (connectedClients.putIfAbsent(session.username, this) != null) {
+                sendControl("RESUME_FAILED");
+                return;
+            }
+            // Lost the race against expiry: the departure has been announced
+            if (!suspendedSessions.remove(session.username, session)) {
+                connectedClients.remove(session.username, this);
+                sendControl("RESUME_FAILED");
+                return;
+            }
+            username = session.username;
+            state = InputState.COMMAND;
+            issueResumeToken();
+            int missed = 0;
+            if (session.room != null) {
+                currentRoom = session.room;
+                // A sequence number from another room means nothing here; rejoin from now on
+                missed = currentRoom.resumeMember(this, currentRoom.name.equals(fields[3]) ? seq : -1);
+            }
+            sendControl("RESUMED", currentRoom == null ? "" : currentRoom.name, String.valueOf(missed));
+            deliverMailbox();
+        }
+
+        // Fields: FETCH, download ticket, offset, length. Sends that range of the ticket's
+        // file on this connection without logging in; the client closes the connection
+        // once the range has arrived. A ticket use counts only once the range has started.
+        private void fetch(String[] fields) {
+            DownloadTicket ticket = fields.length == 4 && isNumber(fields[2]) && isNumber(fields[3])
+                ? DownloadTicket.redeem(fields[1]) : null;
+            if (ticket == null) {
+                sendMessage("ERROR: Invalid or expired download ticket");
+                connection.close();
+                return;
+            }
+            boolean started = false;
+            try {
+                started = sendFile(ticket.fileName, Long.parseLong(fields[2]), Long.parseLong(fields[3]), null);
+            } catch (IOException e) {
+                sendMessage("Error sending file: " + e.getMessage());
+                e.printStackTrace();
+            }
+            if (!started) {
+                ticket.refund();
+            }
+        }
+
+        // Whispers that arrived while this user was away, sent as one batch
+        void deliverMailbox() {
+            if (!Mailboxes.hasMail(username)) {
+                return;
+            }
+            List<String> waiting;
+            try {
+                waiting = Mailboxes.collect(username);
+            } catch (IOException e) {
+                sendMessage("Error reading your offline messages: " + e.getMessage());
+                e.printStackTrace();
+                return;
+            }
+            if (!waiting.isEmpty()) {
+                sendMessage("Private messages received while you were away (" + waiting.size() + "):\n"
+                            + String.join("\n", waiting));
+            }
+        }
+
+        boolean isBinary() {
+            return binary;
+        }
+
+        boolean isSequenced() {
+            return binary && version >= 3;
+        }
+
+        // Called with the room's history locked, just before this client starts receiving
+        // its messages: tells a version 3 client the sequence number it joins after
+        void joined(String room, long lastSeq) {
+            if (isSequenced()) {
+                sendControl("JOINED", room, String.valueOf(lastSeq));
+            }
+        }
+
+        // A missed room message replayed on resume; never dropped like live room traffic
+        void sendSequenced(MessageStore.Message message) {
+            connection.send(Frames.encodeSequenced(message.seq, message.text));
+        }
+
+        // Every line in COMMAND state; chat typed as such skips the command table
+        private void processMessage(String message, boolean chat) {
+            ChatRoom room = currentRoom;
+            long start = System.nanoTime();
+            try {
+                if (chat) {
+                    broadcastMessage(message.trim());
+                } else {
+                    dispatch(message);
+                }
+            } finally {
+                StageLatency.record(room, StageLatency.Stage.DISPATCH, System.nanoTime() - start);
+            }
+        }
+
+        // Chat, or a slash command from the table
+        private void dispatch(String message) {
+            message = message.trim();
+            // Chat is by far the most common input, so it never touches the table
+            if (!message.startsWith("/")) {
+                broadcastMessage(message);
+                return;
+            }
+            int end = 1;
+            while (end < message.length() && !Character.isWhitespace(message.charAt(end))) {
+                end++;
+            }
+            ChatCommand command = COMMANDS.get(message.substring(0, end));
+            if (command == null) {
+                // Not a command we know: say it to the room as typed
+                broadcastMessage(message);
+                return;
+            }
+            command.invoke(this, message.substring(end).trim());
+        }
+
+        private static Map<String, ChatCommand> registerCommands() {
+            Map<String, ChatCommand> commands = new HashMap<>();
+            ChatCommand.register(commands, "/join", (client, args) -> {
+                if (args.isEmpty()) {
+                    client.sendMessage("Please specify a room name. Usage: /join RoomName");
+                } else {
+                    client.joinRoom(args);
+                }
+            });
+            ChatCommand.register(commands, "/rooms", (client, args) -> client.listAvailableRooms());
+            ChatCommand.register(commands, "/create", (client, args) -> {
+                if (args.isEmpty()) {
+                    client.sendMessage("Please specify a room name. Usage: /create RoomName");
+                } else {
+                    client.createRoom(args);
+                }
+            });
+            ChatCommand.register(commands, "/exit", (client, args) -> client.exitCurrentRoom());
+            ChatCommand.register(commands, "/history", ClientHandler::showHistory);
+            ChatCommand.register(commands, "/search", ClientHandler::searchRoom);
+            ChatCommand.register(commands, "/members", (client, args) -> client.listRoomMembers());
+            ChatCommand.register(commands, "/help", (client, args) -> client.showHelp());
+            ChatCommand.register(commands, "/stats", (client, args) -> client.showStats());
+            ChatCommand.register(commands, "/latency", ClientHandler::showLatency);
+            ChatCommand.register(commands, "/whisper", ClientHandler::sendPrivateMessage);
+            ChatCommand.register(commands, "/sendfile", (client, args) -> {
+                try {
+                    client.receiveFile();
+                } catch (IOException e) {
+                    client.sendMessage("Error receiving file: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            });
+            ChatCommand.register(commands, "/getfile", (client, args) -> {
+                if (args.isEmpty()) {
+                    client.sendMessage("Please specify a file name. Usage: /getfile FileName");
+                    return;
+                }
+                try {
+                    client.getFile(args);
+                } catch (IOException e) {
+                    client.sendMessage("Error sending file: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            });
+            ChatCommand.register(commands, "/listfiles", ClientHandler::listAvailableFiles);
+            ChatCommand.register(commands, "/sendvoice", (client, args) -> {
+                try {
+                    client.receiveVoiceMessage();
+                } catch (IOException e) {
+                    client.sendMessage("Error receiving voice message: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            });
+            ChatCommand.register(commands, "/getvoice", (client, args) -> {
+                if (args.isEmpty()) {
+                    client.sendMessage("Please specify a voice message ID. Usage: /getvoice VoiceID");
+                    return;
+                }
+                try {
+                    client.sendVoiceMessage(args);
+                } catch (IOException e) {
+                    client.sendMessage("Error sending voice message: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            });
+            ChatCommand.register(commands, "/listvoices", ClientHandler::listAvailableVoiceMessages);
+            return Collections.unmodifiableMap(commands);
+        }
+
+        // Calls, mean and worst time per command since the server started
+        private void showStats() {
+            sendMessage("Command statistics:");
+            List<ChatCommand> used = new ArrayList<>();
+            for (ChatCommand command : COMMANDS.values()) {
+                if (command.invocations.sum() > 0) {
+                    used.add(command);
+                }
+            }
+            used.sort(Comparator.comparing((ChatCommand command) -> command.name));
+            for (ChatCommand command : used) {
+                long calls = command.invocations.sum();
+                sendMessage(String.format("%s: %d calls, mean %.3f ms, max %.3f ms", command.name, calls,
+                                          command.nanos.sum() / 1e6 / calls, command.maxNanos.get() / 1e6));
+            }
+        }
+
+        // Args: room=Name for one room instead of the whole server; reset clears what is
+        // shown after showing it
+        private void showLatency(String args) {
+            String roomName = null;
+            boolean reset = false;
+            for (String arg : args.split("\\s+")) {
+                if (arg.startsWith("room=")) {
+                    roomName = arg.substring("room=".length());
+                } else if (arg.equals("reset")) {
+                    reset = true;
+                } else if (!arg.isEmpty()) {
+                    sendMessage("Usage: /latency [room=Name] [reset]");
+                    return;
+                }
+            }
+            StageLatency latency = StageLatency.global;
+            if (roomName != null) {
+                ChatRoom room = chatRooms.get(roomName);
+                if (room == null) {
+                    sendMessage("Room " + roomName + " does not exist.");
+                    return;
+                }
+                latency = room.latency;
+            }
+            sendMessage("Latency by stage in " + (roomName == null ? "the server" : roomName) + ":");
+            for (String line : latency.report()) {
+                sendMessage(line);
+            }
+            if (reset) {
+                latency.reset();
+                sendMessage("Latency histograms reset.");
+            }
+        }
+
+        private void listAvailableFiles(String args) {
+            listMedia(FileStore.index, "/listfiles", args, "Available shared files", "No shared files available",
+                      "Use /getfile FileName to download a file");
+        }
+
+        private void listAvailableVoiceMessages(String args) {
+            listMedia(voiceIndex, "/listvoices", args, "Available voice messages", "No voice messages available",
+                      "Use /getvoice VoiceID to download a voice message");
+        }
+
+        // Filters: room=Name user=Name prefix=Text page=N, all optional
+        private void listMedia(MediaIndex index, String command, String args, String heading, String none,
+                               String hint) {
+            String room = null;
+            String uploader = null;
+            String prefix = null;
+            int page = 1;
+            for (String token : args.trim().split("\\s+")) {
+                if (token.startsWith("room=")) {
+                    room = token.substring("room=".length());
+                } else if (token.startsWith("user=")) {
+                    uploader = token.substring("user=".length());
+                } else if (token.startsWith("prefix=")) {
+                    prefix = token.substring("prefix=".length());
+                } else if (token.startsWith("page=") && isNumber(token.substring("page=".length()))) {
+                    page = (int) Math.min(Integer.MAX_VALUE / LIST_PAGE_SIZE,
+                                          Math.max(1, Long.parseLong(token.substring("page=".length()))));
+                } else if (!token.isEmpty()) {
+                    sendMessage("Usage: " + command + " [room=RoomName] [user=Username] [prefix=Text] [page=N]");
+                    return;
+                }
+            }
+
+            // One extra entry tells us whether there is another page
+            List<MediaIndex.Entry> entries =
+                index.find(room, uploader, prefix, (page - 1) * LIST_PAGE_SIZE, LIST_PAGE_SIZE + 1);
+            sendMessage(page > 1 ? heading + " (page " + page + "):" : heading + ":");
+            if (entries.isEmpty()) {
+                sendMessage(none);
+                return;
+            }
+            for (MediaIndex.Entry entry : entries.subList(0, Math.min(entries.size(), LIST_PAGE_SIZE))) {
+                StringBuilder line = new StringBuilder("- ").append(entry.name)
+                    .append(" (").append(formatFileSize(entry.size));
+                if (!entry.uploader.isEmpty()) {
+                    line.append(", from ").append(entry.uploader);
+                    if (!entry.room.isEmpty()) {
+                        line.append(" in ").append(entry.room);
+                    }
+                }
+                sendMessage(line.append(')').toString());
+            }
+            if (entries.size() > LIST_PAGE_SIZE) {
+                StringBuilder next = new StringBuilder(command);
+                if (room != null) {
+                    next.append(" room=").append(room);
+                }
+                if (uploader != null) {
+                    next.append(" user=").append(uploader);
+                }
+                if (prefix != null) {
+                    next.append(" prefix=").append(prefix);
+                }
+                sendMessage("More: " + next.append(" page=").append(page + 1));
+            }
+            sendMessage(hint);
+        }
+        
+        private String formatFileSize(long size) {
+            final String[] units = new String[] { "B", "KB", "MB", "GB", "TB" };
+            int unitIndex = 0;
+            double fileSize = size;
+            
+            while (fileSize > 1024 && unitIndex < units.length - 1) {
+                fileSize /= 1024;
+                unitIndex++;
+            }
+            
+            return String.format("%.2f %s", fileSize, units[unitIndex]);
+        }
+
+        private void receiveFile() throws IOException {
+            sendControl("READY_TO_RECEIVE_FILE");
+            
+            // File name and size arrive as the next two lines, followed by the raw bytes
+            state = InputState.FILE_NAME;
+        }
+
+        private void onUploadFileName(String fileName) {
+            // Check if client cancelled the file transfer
+            if ("FILE_TRANSFER_CANCELLED".equals(fileName)) {
+                state = InputState.COMMAND; // Allow the client to continue with other commands
+                return;
+            }
+
+            pendingUploadName = fileName;
+            state = InputState.FILE_SIZE;
+        }
+
+        private void onUploadFileSize(String line) {
+            long fileSize;
+            try {
+                fileSize = Long.parseLong(line.trim());
+            } catch (NumberFormatException e) {
+                sendMessage("ERROR: Invalid file size: " + line);
+                state = InputState.COMMAND;
+                return;
+            }
+            beginUpload(InputState.FILE_DATA, new Upload(false, pendingUploadName, fileSize, 0));
+        }
+
+        // Legacy path: the announced number of raw bytes follows. A refused upload is
+        // still read off the connection (and discarded), since the client sends it regardless.
+        private void beginUpload(InputState dataState, Upload newUpload) {
+            upload = newUpload;
+            upload.open();
+            state = dataState;
+            decoder.expectRaw(upload.size);
+            if (upload.size == 0) {
+                upload.finish();
+                upload = null;
+                state = InputState.COMMAND;
+            }
+        }
+
+        /**
+         * One file or voice message being received: either the legacy single upload or a
+         * binary-protocol stream. An upload that was refused (too large, storage error)
+         * still counts the bytes that arrive for it but stores nothing. Files are hashed
+         * as they arrive and land in the FileStore under their SHA-256.
+         */
+        private class Upload {
+            final boolean voice;
+            final String name;
+            final long size;
+            final long duration;
+            String storedName;
+            long received;
+            int percentCompleted;
+            FileOutputStream out;
+            File target;
+            MessageDigest digest;
+
+            Upload(boolean voice, String name, long size, long duration) {
+                this.voice = voice;
+                this.name = name;
+                this.size = size;
+                this.duration = duration;
+            }
+
+            // Returns false, after telling the client why, if the upload is refused
+            boolean open() {
+                if (size < 0 || size > MAX_FILE_SIZE) {
+                    sendMessage(voice
+                        ? "ERROR: Voice message too large. Maximum size is " + formatFileSize(MAX_FILE_SIZE)
+                        : "ERROR: File too large. Maximum size is " + formatFileSize(MAX_FILE_SIZE));
+                    return false;
+                }
+                try {
+                    if (voice) {
+                        // Ensure voice storage directory exists
+                        Files.createDirectories(Paths.get(VOICE_STORAGE_DIR));
+                        storedName = username + "_" + System.currentTimeMillis();
+                        target = new File(VOICE_STORAGE_DIR + File.separator + storedName + ".wav");
+                    } else {
+                        storedName = newStoredName();
+                        target = FileStore.newUploadFile();
+                        digest = FileDigests.newSha256();
+                    }
+                    out = new FileOutputStream(target);
+                    return true;
+                } catch (IOException e) {
+                    sendMessage((voice ? "Error receiving voice message: " : "Error receiving file: ") + e.getMessage());
+                    e.printStackTrace();
+                    return false;
+                }
+            }
+
+            // Content we already hold under this digest is shared without receiving it again
+            boolean reuse(String sha256) {
+                if (size < 0 || size > MAX_FILE_SIZE || !FileStore.contains(sha256, size)) {
+                    return false;
+                }
+                storedName = newStoredName();
+                try {
+                    FileStore.index.add(indexEntry(sha256.toLowerCase(), size));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return false;
+                }
+                finishFileUpload(this);
+                return true;
+            }
+
+            // Names only key the index, so keep them to one field of one line
+            private String newStoredName() {
+                return System.currentTimeMillis() + "_" + MediaIndex.Entry.field(name);
+            }
+
+            private MediaIndex.Entry indexEntry(String sha256, long length) {
+                ChatRoom room = currentRoom;
+                return new MediaIndex.Entry(storedName, sha256, length, username,
+                                            room == null ? "" : room.name, System.currentTimeMillis());
+            }
+
+            void write(ByteBuffer data) throws IOException {
+                int length = data.remaining();
+                if (out != null) {
+                    if (digest != null) {
+                        digest.update(data.duplicate());
+                    }
+                    out.getChannel().write(data);
+                }
+                received += length;
+                if (!voice && out != null && size > 0) {
+                    int newPercentCompleted = (int) ((received * 100) / size);
+                    if (newPercentCompleted >= percentCompleted + 10) {
+                        percentCompleted = newPercentCompleted;
+                        sendMessage("File upload: " + percentCompleted + "% completed");
+                    }
+                }
+            }
+
+            void finish() {
+                boolean stored = out != null;
+                close();
+                if (!stored) {
+                    return;
+                }
+                try {
+                    if (voice) {
+                        voiceIndex.add(indexEntry(null, received));
+                    } else {
+                        FileStore.commit(target, indexEntry(FileDigests.toHex(digest.digest()), received));
+                    }
+                } catch (IOException e) {
+                    target.delete();
+                    sendMessage((voice ? "Error receiving voice message: " : "Error receiving file: ") + e.getMessage());
+                    e.printStackTrace();
+                    return;
+                }
+                (voice ? Metrics.voiceUploads : Metrics.fileUploads).increment();
+                Metrics.uploadBytes.add(received);
+                if (voice) {
+                    finishVoiceUpload(this);
+                } else {
+                    finishFileUpload(this);
+                }
+            }
+
+            void fail(IOException e) {
+                if (out != null) {
+                    sendMessage((voice ? "Error receiving voice message: " : "Error receiving file: ") + e.getMessage());
+                    e.printStackTrace();
+                }
+                abort();
+            }
+
+            // Closes and removes a partially written upload
+            void abort() {
+                if (out != null) {
+                    close();
+                    target.delete();
+                }
+            }
+
+            void close() {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    out = null;
+                }
+            }
+        }
+
+        private void finishFileUpload(Upload file) {
+            sendMessage("File uploaded successfully as: " + file.name);
+            
+            // Notify room about the new file
+            if (currentRoom != null) {
+                String fileMessage = username + " shared a file: " + file.name + " (" + formatFileSize(file.size) + ")";
+                fileMessage += "\nUse /getfile " + file.storedName + " to download";
+                currentRoom.broadcast(fileMessage, this);
+                currentRoom.logMessage(fileMessage);
+            }
+        }
+
+        // "/getfile name [offset [length|-]] [sha256=<hex>]". The optional digest covers the
+        // client's copy of the bytes before offset; if it does not match ours the whole
+        // file is sent again. A name that exists as given is never parsed for a range.
+        private void getFile(String args) throws IOException {
+            if (FileStore.get(args) != null) {
+                sendFile(args, -1, -1, null);
+                return;
+            }
+            String[] tokens = args.split("\\s+");
+            int end = tokens.length;
+            String prefixDigest = null;
+            if (end > 1 && tokens[end - 1].startsWith("sha256=")) {
+                prefixDigest = tokens[--end].substring("sha256=".length());
+            }
+            long offset = -1;
+            long length = -1;
+            if (end > 2 && isNumber(tokens[end - 2]) && (isNumber(tokens[end - 1]) || "-".equals(tokens[end - 1]))) {
+                offset = Long.parseLong(tokens[end - 2]);
+                length = "-".equals(tokens[end - 1]) ? -1 : Long.parseLong(tokens[end - 1]);
+                end -= 2;
+            } else if (end > 1 && isNumber(tokens[end - 1])) {
+                offset = Long.parseLong(tokens[end - 1]);
+                end -= 1;
+            }
+            sendFile(String.join(" ", Arrays.copyOf(tokens, end)), offset, length, prefixDigest);
+        }
+
+        private static boolean isNumber(String token) {
+            if (token.isEmpty() || token.length() > 18) {
+                return false;
+            }
+            for (int i = 0; i < token.length(); i++) {
+                if (!Character.isDigit(token.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // A negative offset asks for the whole file in the original format; a negative
+        // length means through to the end. Returns false if an error was sent instead;
+        // a resume whose partial copy is still being checked counts as started.
+        private boolean sendFile(String fileName, long offset, long length, String prefixDigest) throws IOException {
+            MediaIndex.Entry stored = FileStore.get(fileName);
+            File file = stored == null ? null : FileStore.blobFile(stored.sha256);
+            if (file == null || !file.isFile()) {
+                if (stored != null) {
+                    FileStore.index.remove(fileName);
+                }
+                sendMessage("ERROR: File not found");
+                return false;
+            }
+            
+            long fileSize = stored.size;
+            String originalFileName = fileName;
+            if (fileName.contains("_")) {
+                originalFileName = fileName.substring(fileName.indexOf("_") + 1);
+            }
+            
+            boolean ranged = offset >= 0;
+            if (!ranged) {
+                offset = 0;
+            } else if (prefixDigest != null && offset <= fileSize) {
+                // Hashing the prefix reads up to the whole file, so it runs on the digest
+                // threads and the reply is sent from there
+                String name = originalFileName;
+                long requested = offset;
+                FileDigests.prefixSha256(file, stored.sha256, offset).whenComplete((digest, error) -> {
+                    if (error != null) {
+                        Throwable cause = error.getCause() instanceof UncheckedIOException
+                            ? error.getCause().getCause() : error;
+                        sendMessage("Error sending file: " + cause.getMessage());
+                        return;
+                    }
+                    try {
+                        boolean matches = prefixDigest.equalsIgnoreCase(digest);
+                        if (!matches) {
+                            sendMessage("Partial copy of " + name + " does not match, starting from the beginning");
+                        }
+                        sendRange(fileName, stored, file, name, matches ? requested : 0, length, true);
+                    } catch (IOException e) {
+                        sendMessage("Error sending file: " + e.getMessage());
+                        e.printStackTrace();
+                    }
+                });
+                return true;
+            } else if (prefixDigest != null) {
+                // The client's partial copy is longer than this file; start over
+                sendMessage("Partial copy of " + originalFileName + " does not match, starting from the beginning");
+                offset = 0;
+            } else if (offset > fileSize) {
+                sendMessage("ERROR: Offset " + offset + " is past the end of " + originalFileName
+                            + " (" + fileSize + " bytes)");
+                return false;
+            }
+            return sendRange(fileName, stored, file, originalFileName, offset, length, ranged);
+        }
+
+        private boolean sendRange(String fileName, MediaIndex.Entry stored, File file, String originalFileName,
+                               long offset, long length, boolean ranged) throws IOException {
+            long fileSize = stored.size;
+            if (length < 0 || length > fileSize - offset) {
+                length = fileSize - offset;
+            }
+            Metrics.fileDownloads.increment();
+
+            if (binary && ranged && length == 0 && username != null) {
+                // A size probe: the ticket lets the client fetch ranges on other connections
+                return streamFile(file, offset, length, "FILE", originalFileName, String.valueOf(offset),
+                                  String.valueOf(fileSize), stored.sha256, DownloadTicket.issue(fileName));
+            }
+            if (binary) {
+                return streamFile(file, offset, length, "FILE", originalFileName, String.valueOf(offset),
+                                  String.valueOf(fileSize), stored.sha256);
+            }
+            if (ranged) {
+                sendControl("SENDING_FILE_RANGE", originalFileName, String.valueOf(offset),
+                            String.valueOf(length), String.valueOf(fileSize), stored.sha256);
+            } else {
+                sendControl("SENDING_FILE", originalFileName, String.valueOf(fileSize));
+            }
+            sendFileContents(file, offset, length);
+            sendMessage("File download complete: " + originalFileName);
+            return true;
+        }
+
+        // Text mode: the raw bytes must follow the header lines back to back, so the whole
+        // file is queued as one region that the writer hands straight to the socket
+        private void sendFileContents(File file, long offset, long length) throws IOException {
+            FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            connection.sendRegion(new FileRegion(null, source, offset, length, ZERO_COPY, null));
+        }
+
+        // Binary mode: announce the download on a new stream and let the writer pull
+        // chunks between chat messages; the client reports completion on END_STREAM.
+        // STREAM_OPEN carries kind, name and length, then any extra fields. Returns false
+        // if the stream was refused.
+        private boolean streamFile(File file, long offset, long length, String kind, String name,
+                                   String... extra) throws IOException {
+            if (connection.outbound().transferCount() >= MAX_STREAMS_PER_CLIENT) {
+                sendMessage("ERROR: Too many transfers in progress");
+                return false;
+            }
+            int streamId = nextStreamId.getAndAdd(2);
+            FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            StringBuilder header = new StringBuilder(kind).append('\n').append(name).append('\n').append(length);
+            for (String field : extra) {
+                header.append('\n').append(field);
+            }
+            connection.send(Frames.encode(Frames.STREAM_OPEN, streamId, header.toString()));
+            connection.sendTransfer(new BulkTransfer(streamId, source, offset, length));
+            return true;
+        }
+
+        private void receiveVoiceMessage() throws IOException {
+            sendControl("READY_TO_RECEIVE_VOICE");
+            
+            // Duration and size arrive as the next two lines, followed by the raw audio bytes
+            state = InputState.VOICE_DURATION;
+        }
+
+        private void onUploadVoiceDuration(String line) {
+            if ("VOICE_TRANSFER_CANCELLED".equals(line)) {
+                state = InputState.COMMAND;
+                return;
+            }
+            try {
+                pendingVoiceDuration = Long.parseLong(line.trim());
+                state = InputState.VOICE_SIZE;
+            } catch (NumberFormatException e) {
+                sendMessage("ERROR: Invalid voice message duration: " + line);
+                state = InputState.COMMAND;
+            }
+        }
+
+        private void onUploadVoiceSize(String line) {
+            long dataSize;
+            try {
+                dataSize = Long.parseLong(line.trim());
+            } catch (NumberFormatException e) {
+                sendMessage("ERROR: Invalid voice message size: " + line);
+                state = InputState.COMMAND;
+                return;
+            }
+            beginUpload(InputState.VOICE_DATA, new Upload(true, null, dataSize, pendingVoiceDuration));
+        }
+
+        private void finishVoiceUpload(Upload voice) {
+            int durationSeconds = (int) (voice.duration / 1000);
+            sendMessage("Voice message uploaded successfully (Duration: " + durationSeconds + " seconds)");
+            
+            // Notify room about the new voice message
+            if (currentRoom != null) {
+                String voiceMessage = username + " shared a voice message (Duration: " + durationSeconds + " seconds)";
+                voiceMessage += "\nUse /getvoice " + voice.storedName + " to listen";
+                currentRoom.broadcast(voiceMessage, this);
+                currentRoom.logMessage(voiceMessage);
+            }
+        }
+
+        private void sendVoiceMessage(String voiceId) throws IOException {
+            MediaIndex.Entry stored = voiceIndex.get(voiceId);
+            File file = new File(VOICE_STORAGE_DIR + File.separator + voiceId + ".wav");
+            if (stored == null || !file.isFile()) {
+                if (stored != null) {
+                    voiceIndex.remove(voiceId);
+                }
+                sendMessage("ERROR: Voice message not found");
+                return;
+            }
+            
+            long fileSize = stored.size;
+            Metrics.voiceDownloads.increment();
+            
+            if (binary) {
+                streamFile(file, 0, fileSize, "VOICE", voiceId);
+                return;
+            }
+            sendControl("SENDING_VOICE", String.valueOf(fileSize));
+            sendFileContents(file, 0, fileSize);
+            sendMessage("Voice message download complete");
+        }
+
+        private void showHelp() {
+            sendMessage("Available commands:");
             sendMessage("/join [RoomName] - Join a room");
             sendMessage("/create [RoomName] - Create a new room");
             sendMessage("/rooms - List available rooms");
             sendMessage("/exit - Leave current room");
             sendMessage("/members - List members in current room");
+            sendMessage("/history [Count] - Show recent messages in current room");
+            sendMessage("/search [Words] [room=R] [from=D] [to=D] [page=N] - Search a room's log; D is yyyy-MM-dd[THH:mm]");
             sendMessage("/whisper [Username] [Message] - Send private message");
             sendMessage("/sendfile - Upload and share a file");
-            sendMessage("/getfile [FileName] - Download a shared file");
-            sendMessage("/listfiles - List all available files");
+            sendMessage("/getfile [FileName] [offset [length]] - Download a shared file, or part of one");
+            sendMessage("/listfiles [room=R] [user=U] [prefix=P] [page=N] - List available files");
             sendMessage("/sendvoice - Send a voice message");
             sendMessage("/getvoice [VoiceID] - Download a voice message");
-            sendMessage("/listvoices - List all available voice messages");
+            sendMessage("/listvoices [room=R] [user=U] [prefix=P] [page=N] - List available voice messages");
+            sendMessage("/stats - Show how often each command ran and how long it took");
+            sendMessage("/latency [room=Name] [reset] - Show where message handling time goes, server-wide or in one room");
             sendMessage("/help - Show this help menu");
         }
 
-        private void sendPrivateMessage(String message) {
-            String[] parts = message.split("\\s+", 3);
-            if (parts.length < 3) {
-                sendMessage("Usage: /whisper [Username] [Message]");
-                return;
+        private void sendPrivateMessage(String args) {
+            String[] parts = args.split("\\s+", 2);
+            if (parts.length < 2) {
+                sendMessage("Usage: /whisper [Username] [Message]");
+                return;
+            }
+
+            String targetUsername = parts[0];
+            String privateMessage = parts[1];
+
+            ClientHandler targetClient = connectedClients.get(targetUsername);
+            if (targetClient == null) {
+                if (Mailboxes.isKnown(targetUsername)) {
+                    whisperOffline(targetUsername, privateMessage);
+                } else {
+                    sendMessage("User " + targetUsername + " not found.");
+                }
+                return;
+            }
+
+            String formattedMessage = MessageFormatter.whisper(username, privateMessage);
+
+            targetClient.sendMessage(formattedMessage);
+            sendMessage(formattedMessage);
+            
+            // Log private messages in both users' rooms if they are in rooms
+            if (currentRoom != null) {
+                currentRoom.logMessage(formattedMessage + " (to: " + targetUsername + ")");
+            }
+            if (targetClient.currentRoom != null && targetClient.currentRoom != currentRoom) {
+                targetClient.currentRoom.logMessage(formattedMessage + " (from: " + username + ")");
+            }
+        }
+
+        private void whisperOffline(String targetUsername, String privateMessage) {
+            String formattedMessage = MessageFormatter.whisper(username, privateMessage);
+            try {
+                if (!Mailboxes.deliverLater(targetUsername, username, privateMessage, System.currentTimeMillis())) {
+                    sendMessage(targetUsername + " is offline and their mailbox is full; message not delivered.");
+                    return;
+                }
+            } catch (IOException e) {
+                sendMessage("Error saving message for " + targetUsername + ": " + e.getMessage());
+                e.printStackTrace();
+                return;
+            }
+            sendMessage(formattedMessage);
+            sendMessage(targetUsername + " is offline; they will get your message when they next log in.");
+            if (currentRoom != null) {
+                currentRoom.logMessage(formattedMessage + " (to: " + targetUsername + ", offline)");
+            }
+            // They may have logged in since we looked
+            ClientHandler arrived = connectedClients.get(targetUsername);
+            if (arrived != null) {
+                arrived.deliverMailbox();
+            }
+        }
+
+        private void showHistory(String count) {
+            if (currentRoom == null) {
+                sendMessage("You are not in a room.");
+                return;
+            }
+            int limit = HISTORY_DEFAULT_COUNT;
+            if (!count.isEmpty()) {
+                if (!isNumber(count)) {
+                    sendMessage("Usage: /history [Count]");
+                    return;
+                }
+                limit = (int) Math.min(HISTORY_MAX_COUNT, Long.parseLong(count));
+            }
+            List<String> recent;
+            try {
+                recent = currentRoom.recentMessages(limit);
+            } catch (IOException e) {
+                sendMessage("Error reading history: " + e.getMessage());
+                e.printStackTrace();
+                return;
+            }
+            if (recent.isEmpty()) {
+                sendMessage("No messages in " + currentRoom.name + " yet.");
+                return;
+            }
+            sendMessage("Last " + recent.size() + " messages in " + currentRoom.name + ":");
+            for (String message : recent) {
+                sendMessage(message);
+            }
+        }
+
+        // Words to find, all required, plus filters room=Name from=Date to=Date page=N;
+        // dates are yyyy-MM-dd or yyyy-MM-ddTHH:mm in server time
+        private void searchRoom(String args) {
+            String usage = "Usage: /search Words [room=RoomName] [from=yyyy-MM-dd[THH:mm]] [to=yyyy-MM-dd[THH:mm]] [page=N]";
+            ChatRoom room = currentRoom;
+            long from = Long.MIN_VALUE;
+            long to = Long.MAX_VALUE;
+            int page = 1;
+            List<String> terms = new ArrayList<>();
+            StringBuilder next = new StringBuilder("/search");
+            for (String token : args.trim().split("\\s+")) {
+                try {
+                    if (token.startsWith("room=")) {
+                        room = chatRooms.get(token.substring("room=".length()));
+                        if (room == null) {
+                            sendMessage("Room " + token.substring("room=".length()) + " does not exist.");
+                            return;
+                        }
+                    } else if (token.startsWith("from=")) {
+                        from = parseSearchTime(token.substring("from=".length()), false);
+                    } else if (token.startsWith("to=")) {
+                        to = parseSearchTime(token.substring("to=".length()), true);
+                    } else if (token.startsWith("page=") && isNumber(token.substring("page=".length()))) {
+                        page = (int) Math.min(Integer.MAX_VALUE / LIST_PAGE_SIZE,
+                                              Math.max(1, Long.parseLong(token.substring("page=".length()))));
+                        continue;
+                    } else {
+                        terms.addAll(SegmentIndex.tokenize(token));
+                    }
+                } catch (DateTimeException e) {
+                    sendMessage(usage);
+                    return;
+                }
+                if (!token.isEmpty()) {
+                    next.append(' ').append(token);
+                }
+            }
+            if (terms.isEmpty()) {
+                sendMessage(usage);
+                return;
+            }
+            if (room == null) {
+                sendMessage("You are not in a room. Use room=RoomName to search another room.");
+                return;
+            }
+
+            // One extra match tells us whether there is another page
+            List<String> matches = new ArrayList<>();
+            int unindexed;
+            try {
+                unindexed = room.search(terms, from, to, (page - 1) * LIST_PAGE_SIZE, LIST_PAGE_SIZE + 1, matches);
+            } catch (IOException e) {
+                sendMessage("Error searching " + room.name + ": " + e.getMessage());
+                e.printStackTrace();
+                return;
+            }
+            sendMessage(page > 1 ? "Matches in " + room.name + " (page " + page + "):" : "Matches in " + room.name + ":");
+            if (unindexed > 0) {
+                sendMessage(unindexed + " log segment(s) are still being indexed and were not searched; try again shortly.");
+            }
+            if (matches.isEmpty()) {
+                sendMessage("No matching messages");
+                return;
+            }
+            for (String match : matches.subList(0, Math.min(matches.size(), LIST_PAGE_SIZE))) {
+                sendMessage(match);
+            }
+            if (matches.size() > LIST_PAGE_SIZE) {
+                sendMessage("More: " + next.append(" page=").append(page + 1));
+            }
+        }
+
+        // A date covers the whole day: its start for from=, its end for to=
+        private static long parseSearchTime(String value, boolean end) {
+            ZoneId zone = ZoneId.systemDefault();
+            if (value.indexOf('T') > 0) {
+                LocalDateTime time = LocalDateTime.parse(value);
+                return (end ? time.plusMinutes(1) : time).atZone(zone).toInstant().toEpochMilli() - (end ? 1 : 0);
+            }
+            LocalDate day = LocalDate.parse(value);
+            return (end ? day.plusDays(1) : day).atStartOfDay(zone).toInstant().toEpochMilli() - (end ? 1 : 0);
+        }
+
+        private void listRoomMembers() {
+            if (currentRoom == null) {
+                sendMessage("You are not in a room.");
+                return;
+            }
+
+            List<String> members = currentRoom.getMemberNames();
+            sendMessage("Members in " + currentRoom.name + ":");
+            for (String member : members) {
+                sendMessage("- " + member);
+            }
+        }
+
+        private void exitCurrentRoom() {
+            if (currentRoom == null) {
+                sendMessage("You are not in a room.");
+                return;
+            }
+
+            currentRoom.removeMember(this);
+            currentRoom = null;
+            sendMessage("You have left the room.");
+            listAvailableRooms();
+        }
+
+        private void createRoom(String roomName) {
+            // Two rooms of one name would write the same log and message store
+            synchronized (chatRooms) {
+                if (chatRooms.containsKey(roomName)) {
+                    sendMessage("Room " + roomName + " already exists.");
+                    return;
+                }
+                chatRooms.put(roomName, new ChatRoom(roomName));
+            }
+            sendMessage("Room " + roomName + " created successfully.");
+            System.out.println("New room created: " + roomName);
+        }
+
+        private void joinRoom(String roomName) {
+            ChatRoom newRoom = chatRooms.get(roomName);
+            
+            if (newRoom == null) {
+                sendMessage("Room " + roomName + " does not exist. Use /create to make a new room.");
+                return;
+            }
+
+            if (currentRoom != null) {
+                currentRoom.removeMember(this);
+            }
+
+            currentRoom = newRoom;
+            currentRoom.addMember(this);
+            sendMessage("Joined room: " + roomName);
+        }
+
+        private void broadcastMessage(String message) {
+            if (currentRoom == null) {
+                sendMessage("You are not in a room. Use /join to enter a room.");
+                return;
+            }
+
+            long start = System.nanoTime();
+            String formattedMessage = MessageFormatter.chat(username, currentRoom.name, message);
+            StageLatency.record(currentRoom, StageLatency.Stage.FORMAT, System.nanoTime() - start);
+
+            // Broadcast to other users
+            currentRoom.broadcast(formattedMessage, this);
+            
+            // Send the message back to the sender
+            sendMessage(formattedMessage);
+        }
+
+        void disconnect() {
+            if (!disconnected.compareAndSet(false, true)) {
+                return;
+            }
+            // A version 3 client that just lost its connection may come back within the
+            // grace period, so hold its name and room without telling anyone
+            boolean suspend = resumeToken != null && username != null;
+            if (suspend) {
+                new SuspendedSession(username, resumeToken, currentRoom).suspend();
+            }
+            if (username != null) {
+                connectedClients.remove(username, this);
+            }
+            if (currentRoom != null) {
+                if (suspend) {
+                    currentRoom.suspendMember(this);
+                } else {
+                    currentRoom.removeMember(this);
+                }
+            }
+            if (upload != null) {
+                upload.abort();
+            }
+            for (Upload stream : uploadStreams.values()) {
+                stream.abort();
+            }
+            uploadStreams.clear();
+            if (connection != null) {
+                connection.close();
+            }
+        }
+
+        private void sendMessage(String message) {
+            connection.send(binary ? Frames.encode(Frames.CHAT, message) : encodeLine(message));
+        }
+
+        // Protocol replies the client acts on: one line per field in text mode, one frame in binary mode
+        private void sendControl(String... fields) {
+            if (binary) {
+                connection.send(Frames.encode(Frames.CONTROL, String.join("\n", fields)));
+            } else {
+                for (String field : fields) {
+                    connection.send(encodeLine(field));
+                }
+            }
+        }
+
+        // Room traffic: an already-encoded view shared with the other members of the room,
+        // queued behind this client's replies and droppable if it falls behind. Returns
+        // false if the client should be disconnected; see disconnectSlow.
+        boolean deliver(ByteBuffer payload) {
+            return connection.deliver(payload);
+        }
+
+        // Called by the room after its lock is released, never while fanning out
+        void disconnectSlow() {
+            connection.disconnectSlow();
+        }
+
+        static ByteBuffer encodeLine(String message) {
+            return ByteBuffer.wrap((message + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Owns the per-connection read buffer and turns the bytes read into handler
+     * callbacks. The buffer grows only while a single line or frame is incomplete.
+     */
+    abstract static class InboundDecoder {
+        protected ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        protected long rawRemaining;
+
+        // Returns the read buffer in fill mode, growing it if a partial line or frame has filled it
+        ByteBuffer writableBuffer() throws IOException {
+            if (!buffer.hasRemaining()) {
+                int limit = maxBufferSize();
+                if (buffer.capacity() >= limit) {
+                    throw new IOException("Inbound message exceeds " + limit + " bytes");
+                }
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, limit));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+            return buffer;
+        }
+
+        void expectRaw(long count) {
+            rawRemaining = count;
+        }
+
+        long rawRemaining() {
+            return rawRemaining;
+        }
+
+        // Binary mode only: a DATA frame payload for the upload in progress
+        void onData(ClientHandler handler, ByteBuffer payload) {
+            if (rawRemaining <= 0) {
+                return;
+            }
+            if (payload.remaining() > rawRemaining) {
+                payload.limit(payload.position() + (int) rawRemaining);
+            }
+            rawRemaining -= payload.remaining();
+            handler.onRawData(payload, rawRemaining == 0);
+        }
+
+        // Takes over bytes the previous decoder read but did not consume (buffer in fill mode)
+        void adopt(ByteBuffer leftover) {
+            leftover.flip();
+            while (buffer.remaining() < leftover.remaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+            buffer.put(leftover);
+        }
+
+        abstract int maxBufferSize();
+
+        abstract void decode(ClientHandler handler) throws IOException;
+    }
+
+    /**
+     * Legacy text protocol: splits the inbound bytes into UTF-8 lines, or hands over a
+     * fixed number of raw bytes while the handler is in the middle of an upload.
+     */
+    static class LineDecoder extends InboundDecoder {
+        private int scanned;
+
+        @Override
+        int maxBufferSize() {
+            return MAX_LINE_LENGTH;
+        }
+
+        @Override
+        void decode(ClientHandler handler) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining() && handler.isOpen()) {
+                if (rawRemaining > 0) {
+                    int length = (int) Math.min(rawRemaining, buffer.remaining());
+                    ByteBuffer chunk = buffer.slice();
+                    chunk.limit(length);
+                    buffer.position(buffer.position() + length);
+                    rawRemaining -= length;
+                    scanned = 0;
+                    handler.onRawData(chunk, rawRemaining == 0);
+                    continue;
+                }
+
+                long parseStart = System.nanoTime();
+                int start = buffer.position();
+                int eol = -1;
+                for (int i = start + scanned; i < buffer.limit(); i++) {
+                    if (buffer.get(i) == '\n') {
+                        eol = i;
+                        break;
+                    }
+                }
+                if (eol < 0) {
+                    // Remember how far we looked so the next read doesn't rescan the same bytes
+                    scanned = buffer.limit() - start;
+                    break;
+                }
+
+                int end = eol;
+                if (end > start && buffer.get(end - 1) == '\r') {
+                    end--;
+                }
+                String line = new String(buffer.array(), buffer.arrayOffset() + start, end - start,
+                                         StandardCharsets.UTF_8);
+                buffer.position(eol + 1);
+                scanned = 0;
+                StageLatency.record(null, StageLatency.Stage.PARSE, System.nanoTime() - parseStart);
+                handler.onLine(line);
+
+                if (handler.decoder != this) {
+                    // The line switched the connection to binary frames; hand over the rest
+                    buffer.compact();
+                    handler.decoder.adopt(buffer);
+                    handler.decoder.decode(handler);
+                    return;
+                }
+            }
+            buffer.compact();
+        }
+    }
+
+    /**
+     * Binary protocol: cuts the inbound bytes into length-prefixed frames. The payload
+     * handed to the handler is a view into the read buffer, valid only for the call.
+     */
+    static class FrameDecoder extends InboundDecoder {
+        @Override
+        int maxBufferSize() {
+            return Frames.HEADER_SIZE + Frames.MAX_PAYLOAD;
+        }
+
+        @Override
+        void decode(ClientHandler handler) throws IOException {
+            buffer.flip();
+            while (buffer.remaining() >= Frames.HEADER_SIZE && handler.isOpen()) {
+                long parseStart = System.nanoTime();
+                int start = buffer.position();
+                byte type = buffer.get(start);
+                byte flags = buffer.get(start + 1);
+                int streamId = buffer.getInt(start + 2);
+                int length = buffer.getInt(start + 6);
+                if (length < 0 || length > Frames.MAX_PAYLOAD) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                if (buffer.remaining() < Frames.HEADER_SIZE + length) {
+                    break;
+                }
+                ByteBuffer payload = buffer.slice(start + Frames.HEADER_SIZE, length);
+                buffer.position(start + Frames.HEADER_SIZE + length);
+                StageLatency.record(null, StageLatency.Stage.PARSE, System.nanoTime() - parseStart);
+                handler.onFrame(type, flags, streamId, payload);
+            }
+            buffer.compact();
+        }
+    }
+
+    /**
+     * Binary wire protocol, version 3. A client opts in by sending the line
+     * HELLO_PREFIX + version instead of a username; the server answers with the
+     * agreed version as a text line and both sides switch to frames:
+     *
+     *   type (1 byte) | flags (1 byte) | stream id (4 bytes) | payload length (4 bytes) | payload
+     *
+     * CHAT, COMMAND and CONTROL payloads are UTF-8 text; DATA frames carry file and
+     * voice bytes, the last one of a transfer flagged END_STREAM. STREAM_OPEN starts a
+     * transfer on its own stream id (odd ids are chosen by the client, even ids by the
+     * server) so several can be in flight next to chat; STREAM_RESET cancels one.
+     * Version 2 lets a file upload carry its SHA-256; the server then answers with a
+     * CONTROL frame on the stream before the client sends any bytes.
+     * Version 3 numbers room chat: such CHAT frames are flagged SEQUENCED and lead with
+     * the room's 8-byte sequence number, and JOINED tells the client where it starts.
+     * The server also hands out a RESUME_TOKEN at login. After a dropped connection, a
+     * RESUME control frame in place of the username takes the session back and replays
+     * what the room said since the last sequence number seen. BYE ends a session for good.
+     * A FETCH control frame in place of the username redeems a download ticket for one
+     * range of a file (see DownloadTicket).
+     */
+    static final class Frames {
+        static final int VERSION = 3;
+        static final String HELLO_PREFIX = "\0ECHO/";
+        static final int HEADER_SIZE = 10;
+        static final int MAX_PAYLOAD = 64 * 1024;
+
+        static final byte CHAT = 1;
+        static final byte COMMAND = 2;
+        static final byte CONTROL = 3;
+        static final byte DATA = 4;
+        static final byte STREAM_OPEN = 5;
+        static final byte STREAM_RESET = 6;
+
+        static final byte FLAG_END_STREAM = 1;
+        // Version 3: a CHAT frame whose payload starts with the room's 8-byte sequence number
+        static final byte FLAG_SEQUENCED = 2;
+
+        private Frames() {
+        }
+
+        static ByteBuffer encode(byte type, String text) {
+            return encode(type, 0, text);
+        }
+
+        static ByteBuffer encode(byte type, int streamId, String text) {
+            byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+            putHeader(frame, type, 0, streamId, payload.length);
+            frame.position(HEADER_SIZE);
+            frame.put(payload);
+            frame.flip();
+            return frame;
+        }
+
+        static ByteBuffer encodeSequenced(long seq, String text) {
+            byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + 8 + payload.length);
+            putHeader(frame, CHAT, FLAG_SEQUENCED, 0, 8 + payload.length);
+            frame.position(HEADER_SIZE);
+            frame.putLong(seq);
+            frame.put(payload);
+            frame.flip();
+            return frame;
+        }
+
+        // Writes a header at the start of the buffer without moving its position
+        static void putHeader(ByteBuffer frame, byte type, int flags, int streamId, int length) {
+            frame.put(0, type);
+            frame.put(1, (byte) flags);
+            frame.putInt(2, streamId);
+            frame.putInt(6, length);
+        }
+
+        static String text(ByteBuffer payload) {
+            byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Bounded queue of buffers waiting to be written to one client. Replies addressed to
+     * the client itself are always kept; room traffic counts against the capacity and
+     * is subject to the overflow policy, so a stalled reader costs bounded memory and
+     * never holds up the thread that is broadcasting.
+     */
+    static class OutboundQueue {
+        enum OverflowPolicy {
+            DROP_OLDEST,
+            DISCONNECT,
+            COALESCE
+        }
+
+        static final LongAdder totalQueued = new LongAdder();
+        static final LongAdder totalDropped = new LongAdder();
+        static final LongAdder totalCoalesced = new LongAdder();
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+        // Bulk downloads, served round-robin one chunk at a time whenever entries is empty
+        private final ArrayDeque<BulkTransfer> transfers = new ArrayDeque<>();
+        private final int capacity;
+        private final long maxBytes;
+        private final OverflowPolicy policy;
+        private int droppableCount;
+        private long droppableBytes;
+        // Only changed under the lock; volatile so the counts can be read without it
+        private volatile long queued;
+        private volatile long dropped;
+        private volatile long coalesced;
+
+        private static class Entry {
+            final ByteBuffer data;
+            final boolean droppable;
+            final long queuedAt; // nanoTime when room traffic was queued, for write latency
+
+            final FileRegion region;
+            boolean merged; // Built by coalesce(), which leaves it alone from then on
+
+            Entry(ByteBuffer data, boolean droppable) {
+                this(data, null, droppable, droppable ? System.nanoTime() : 0);
+            }
+
+            Entry(ByteBuffer data, FileRegion region, boolean droppable, long queuedAt) {
+                this.data = data;
+                this.region = region;
+                this.droppable = droppable;
+                this.queuedAt = queuedAt;
+            }
+        }
+
+        OutboundQueue(int capacity, long maxBytes, OverflowPolicy policy) {
+            this.capacity = capacity;
+            this.maxBytes = maxBytes;
+            this.policy = policy;
+        }
+
+        // Returns false when the policy says the client should be disconnected
+        boolean offer(ByteBuffer data, boolean droppable) {
+            lock.lock();
+            try {
+                if (droppable) {
+                    int size = data.remaining();
+                    while (droppableCount >= capacity || (droppableCount > 0 && droppableBytes + size > maxBytes)) {
+                        if (!makeRoom()) {
+                            return false;
+                        }
+                    }
+                    droppableCount++;
+                    droppableBytes += size;
+                }
+                entries.addLast(new Entry(data, droppable));
+                queued++;
+                totalQueued.increment();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Queues a file region in order with replies; never dropped
+        void offerRegion(FileRegion region) {
+            lock.lock();
+            try {
+                entries.addLast(new Entry(null, region, false, 0));
+                queued++;
+                totalQueued.increment();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean makeRoom() {
+            switch (policy) {
+                case DISCONNECT:
+                    return false;
+                case COALESCE:
+                    if (droppableCount >= capacity && coalesce()) {
+                        return true;
+                    }
+                    return dropOldest();
+                default:
+                    return dropOldest();
+            }
+        }
+
+        private boolean dropOldest() {
+            Iterator<Entry> it = entries.iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.droppable) {
+                    it.remove();
+                    droppableCount--;
+                    droppableBytes -= entry.data.remaining();
+                    dropped++;
+                    totalDropped.increment();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Merges the room messages queued since the last pass, the run at the tail, into a
+        // single buffer; false if there is nothing to merge. Buffers merged by earlier
+        // passes are left alone, so each message is copied at most once, and once bytes
+        // run out they are dropped whole like any other entry.
+        private boolean coalesce() {
+            int run = 0;
+            int size = 0;
+            Iterator<Entry> it = entries.descendingIterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (!entry.droppable || entry.merged) {
+                    break;
+                }
+                run++;
+                size += entry.data.remaining();
+            }
+            if (run < 2) {
+                return false;
+            }
+            Entry[] parts = new Entry[run];
+            for (int i = run - 1; i >= 0; i--) {
+                parts[i] = entries.pollLast();
+            }
+            ByteBuffer joined = ByteBuffer.allocate(size);
+            for (Entry part : parts) {
+                joined.put(part.data.duplicate());
+            }
+            joined.flip();
+            // Counts as queued when its oldest part was
+            Entry merged = new Entry(joined, null, true, parts[0].queuedAt);
+            merged.merged = true;
+            entries.addLast(merged);
+            droppableCount -= run - 1;
+            coalesced += run - 1;
+            totalCoalesced.add(run - 1);
+            return true;
+        }
+
+        // Moves up to batch.length buffers into batch, stopping before a close marker unless
+        // it is first, and before any file region, with when each was queued (0 for
+        // anything but room traffic) in queuedAt. Returns the number of buffers moved.
+        int drainTo(ByteBuffer[] batch, long[] queuedAt) {
+            lock.lock();
+            try {
+                int count = 0;
+                while (count < batch.length) {
+                    Entry entry = entries.peekFirst();
+                    if (entry == null || entry.region != null
+                            || (entry.data == Connection.CLOSE_MARKER && count > 0)) {
+                        break;
+                    }
+                    entries.pollFirst();
+                    if (entry.droppable) {
+                        droppableCount--;
+                        droppableBytes -= entry.data.remaining();
+                    }
+                    queuedAt[count] = entry.queuedAt;
+                    batch[count++] = entry.data;
+                    if (entry.data == Connection.CLOSE_MARKER) {
+                        break;
+                    }
+                }
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Takes the file region at the head of the queue, if that is what comes next
+        FileRegion pollRegion() {
+            lock.lock();
+            try {
+                Entry entry = entries.peekFirst();
+                if (entry == null || entry.region == null) {
+                    return null;
+                }
+                entries.pollFirst();
+                return entry.region;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void addTransfer(BulkTransfer transfer) {
+            lock.lock();
+            try {
+                transfers.addLast(transfer);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Next chunk of the transfer whose turn it is, or null if none are active. The
+        // transfer stays under the lock while its chunk is cut, so cancelTransfer and
+        // closeTransfers always find it, either queued or with its chunk in flight.
+        FileRegion nextBulkChunk() {
+            lock.lock();
+            try {
+                BulkTransfer transfer = transfers.pollFirst();
+                if (transfer == null) {
+                    return null;
+                }
+                FileRegion chunk = transfer.nextChunk();
+                if (!transfer.isDone()) {
+                    transfers.addLast(transfer);
+                }
+                return chunk;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void cancelTransfer(int streamId) {
+            lock.lock();
+            try {
+                transfers.removeIf(transfer -> {
+                    if (transfer.streamId == streamId) {
+                        transfer.close();
+                        return true;
+                    }
+                    return false;
+                });
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void closeTransfers() {
+            lock.lock();
+            try {
+                for (BulkTransfer transfer : transfers) {
+                    transfer.close();
+                }
+                transfers.clear();
+                entries.removeIf(entry -> {
+                    if (entry.region != null) {
+                        entry.region.release();
+                        return true;
+                    }
+                    return false;
+                });
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int transferCount() {
+            lock.lock();
+            try {
+                return transfers.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean isEmpty() {
+            lock.lock();
+            try {
+                return entries.isEmpty() && transfers.isEmpty();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int depth() {
+            lock.lock();
+            try {
+                return entries.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long queuedCount() {
+            return queued;
+        }
+
+        long droppedCount() {
+            return dropped;
+        }
+
+        long coalescedCount() {
+            return coalesced;
+        }
+
+        static OverflowPolicy parsePolicy(String value) {
+            try {
+                return OverflowPolicy.valueOf(value.trim().toUpperCase().replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown outbound overflow policy '" + value + "', using drop-oldest");
+                return OverflowPolicy.DROP_OLDEST;
+            }
+        }
+    }
+
+    /**
+     * A file being streamed to one client as DATA frames on its own stream. The writer
+     * pulls one chunk per turn, so chat queued meanwhile goes out ahead of the next
+     * chunk and several downloads share the connection fairly. Each chunk is a frame
+     * header plus a region of the file, so the payload never passes through the heap.
+     */
+    static class BulkTransfer {
+        final int streamId;
+        private final FileChannel source;
+        private long position;
+        private long remaining;
+        private boolean done;
+        // A chunk handed to the writer still reads from source, so closing waits for it
+        private boolean inFlight;
+        private boolean closed;
+
+        BulkTransfer(int streamId, FileChannel source, long position, long length) {
+            this.streamId = streamId;
+            this.source = source;
+            this.position = position;
+            this.remaining = length;
+        }
+
+        // Returns the next DATA frame as a header and a file region
+        synchronized FileRegion nextChunk() {
+            int length = (int) Math.min(FILE_CHUNK_SIZE, remaining);
+            ByteBuffer header = ByteBuffer.allocate(Frames.HEADER_SIZE);
+            remaining -= length;
+            Frames.putHeader(header, Frames.DATA, remaining == 0 ? Frames.FLAG_END_STREAM : 0, streamId, length);
+            FileRegion chunk = new FileRegion(header, source, position, length, ZERO_COPY, this);
+            position += length;
+            if (remaining == 0) {
+                done = true;
+            }
+            inFlight = true;
+            return chunk;
+        }
+
+        synchronized boolean isDone() {
+            return done;
+        }
+
+        // Called once the writer is finished with a chunk, written or not
+        synchronized void chunkReleased() {
+            inFlight = false;
+            if (done) {
+                closeSource();
+            }
+        }
+
+        synchronized void close() {
+            done = true;
+            if (!inFlight) {
+                closeSource();
+            }
+        }
+
+        private void closeSource() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                source.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * An optional prefix buffer followed by a span of a file, written to the socket with
+     * FileChannel.transferTo so the kernel moves the bytes without copying them into
+     * the JVM. Without zero copy the span is staged through a pooled direct buffer,
+     * which still avoids the extra heap copy a heap ByteBuffer write would make.
+     */
+    static class FileRegion {
+        private final ByteBuffer head;
+        private final FileChannel source;
+        private final boolean zeroCopy;
+        private final BulkTransfer owner;
+        private long position;
+        private long remaining;
+        private ByteBuffer staging;
+        private boolean released;
+
+        // With no owner the region owns source and closes it when released
+        FileRegion(ByteBuffer head, FileChannel source, long position, long count,
+                   boolean zeroCopy, BulkTransfer owner) {
+            this.head = head;
+            this.source = source;
+            this.position = position;
+            this.remaining = count;
+            this.zeroCopy = zeroCopy;
+            this.owner = owner;
+        }
+
+        // File bytes not yet written
+        long remaining() {
+            return remaining;
+        }
+
+        // Frame header and file bytes not yet written
+        long pending() {
+            return (head == null ? 0 : head.remaining()) + remaining;
+        }
+
+        // Writes as much as the channel accepts; true once the whole region is out
+        boolean writeTo(WritableByteChannel target) throws IOException {
+            if (head != null && head.hasRemaining()) {
+                target.write(head);
+                if (head.hasRemaining()) {
+                    return false;
+                }
+            }
+            while (remaining > 0) {
+                if (zeroCopy) {
+                    long written = source.transferTo(position, remaining, target);
+                    if (written == 0) {
+                        if (position >= source.size()) {
+                            throw new EOFException("File shrank during download");
+                        }
+                        return false;
+                    }
+                    position += written;
+                    remaining -= written;
+                } else {
+                    if (staging == null) {
+                        staging = DirectBufferPool.acquire();
+                        staging.limit(0);
+                    }
+                    if (!staging.hasRemaining()) {
+                        staging.clear();
+                        if (staging.capacity() > remaining) {
+                            staging.limit((int) remaining);
+                        }
+                        int read = source.read(staging, position);
+                        if (read < 0) {
+                            throw new EOFException("File shrank during download");
+                        }
+                        position += read;
+                        staging.flip();
+                    }
+                    remaining -= target.write(staging);
+                    if (staging.hasRemaining()) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            if (staging != null) {
+                DirectBufferPool.release(staging);
+                staging = null;
+            }
+            if (owner != null) {
+                owner.chunkReleased();
+            } else {
+                try {
+                    source.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * SHA-256 of stored files, used to check resumed downloads and to name blobs.
+     * Whole-file digests need no computing here: a blob's name is its digest.
+     */
+    static final class FileDigests {
+        private static final int MAX_CACHED_PREFIXES = 256;
+        private static final Map<String, String> prefixes = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > MAX_CACHED_PREFIXES;
+            }
+        };
+        private static final ExecutorService hashing = Executors.newFixedThreadPool(2, task -> {
+            Thread thread = new Thread(task, "file-digest");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        private FileDigests() {
+        }
+
+        static MessageDigest newSha256() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        // Digest of the first length bytes of a shared file's blob, hashed on the digest
+        // threads. Results are kept per blob and length, since a client retrying a resume
+        // presents the same prefix again.
+        static CompletableFuture<String> prefixSha256(File blob, String blobSha256, long length) {
+            String key = blobSha256 + ":" + length;
+            synchronized (prefixes) {
+                String cached = prefixes.get(key);
+                if (cached != null) {
+                    return CompletableFuture.completedFuture(cached);
+                }
+            }
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    String digest = sha256(blob, length);
+                    synchronized (prefixes) {
+                        prefixes.put(key, digest);
+                    }
+                    return digest;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, hashing);
+        }
+
+        // Digest of the first length bytes
+        static String sha256(File file, long length) throws IOException {
+            MessageDigest digest = newSha256();
+            try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(FILE_CHUNK_SIZE);
+                long remaining = length;
+                while (remaining > 0) {
+                    buffer.clear();
+                    if (buffer.capacity() > remaining) {
+                        buffer.limit((int) remaining);
+                    }
+                    int read = source.read(buffer);
+                    if (read < 0) {
+                        throw new EOFException("File shorter than " + length + " bytes");
+                    }
+                    buffer.flip();
+                    digest.update(buffer);
+                    remaining -= read;
+                }
+            }
+            return toHex(digest.digest());
+        }
+
+        static String toHex(byte[] bytes) {
+            StringBuilder hex = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        }
+    }
+
+    /**
+     * Content-addressed storage for shared files. Each distinct content is kept once,
+     * as blobs/<first two hex digits>/<sha256>, and the file index maps the names
+     * handed out by /getfile to blobs, so the same file shared in several rooms costs
+     * its size once.
+     */
+    static final class FileStore {
+        static final MediaIndex index = new MediaIndex(Paths.get(FILE_INDEX));
+
+        private FileStore() {
+        }
+
+        static void load() throws IOException {
+            index.load();
+            migrateLooseFiles();
+        }
+
+        // Files saved directly into shared_files by older versions become index entries
+        private static void migrateLooseFiles() throws IOException {
+            File[] files = new File(FILE_STORAGE_DIR).listFiles();
+            if (files == null) {
+                return;
+            }
+            int moved = 0;
+            for (File file : files) {
+                if (!file.isFile() || file.getName().startsWith(".")) {
+                    continue;
+                }
+                commit(file, new MediaIndex.Entry(file.getName(), FileDigests.sha256(file, file.length()),
+                                                  file.length(), "", "", file.lastModified()));
+                moved++;
+            }
+            if (moved > 0) {
+                System.out.println("Moved " + moved + " shared files into the content store");
+            }
+        }
+
+        static MediaIndex.Entry get(String name) {
+            return index.get(name);
+        }
+
+        static boolean contains(String sha256, long size) {
+            if (!isDigest(sha256)) {
+                return false;
+            }
+            File blob = blobFile(sha256.toLowerCase());
+            return blob.isFile() && blob.length() == size;
+        }
+
+        // A fresh file to receive an upload into, on the same file system as the blobs
+        static File newUploadFile() throws IOException {
+            Files.createDirectories(Paths.get(BLOB_DIR));
+            return Files.createTempFile(Paths.get(BLOB_DIR), "upload-", ".part").toFile();
+        }
+
+        // Moves a fully received file into the store, or drops it if the content is
+        // already there, and records it in the index
+        static void commit(File file, MediaIndex.Entry entry) throws IOException {
+            Path blob = blobFile(entry.sha256).toPath();
+            Files.createDirectories(blob.getParent());
+            if (Files.exists(blob)) {
+                Files.delete(file.toPath());
+            } else {
+                Files.move(file.toPath(), blob, StandardCopyOption.ATOMIC_MOVE);
+            }
+            index.add(entry);
+        }
+
+        static File blobFile(String sha256) {
+            return new File(BLOB_DIR + File.separator + sha256.substring(0, 2) + File.separator + sha256);
+        }
+
+        static boolean isDigest(String value) {
+            if (value.length() != 64) {
+                return false;
+            }
+            for (int i = 0; i < value.length(); i++) {
+                if (Character.digit(value.charAt(i), 16) < 0) {
+                    return false;
+                }
             }
+            return true;
+        }
+    }
 
-            String targetUsername = parts[1];
-            String privateMessage = parts[2];
+    /**
+     * Metadata for stored files or voice messages, kept in memory so that listing and
+     * lookups never scan the storage directory or stat its files. Entries are reachable
+     * newest first overall, per room and per uploader, and by title for prefix matches,
+     * so a page costs a walk to its start and the page itself.
+     *
+     * Persisted as an append-only file of tab-separated lines, replayed at startup:
+     * "sha256 size timestamp uploader room name" adds an entry (sha256 is "-" for voice
+     * messages) and "- name" removes one. The file is rewritten without the dead lines
+     * when they outnumber the live entries.
+     */
+    static final class MediaIndex {
+        static final class Entry {
+            final String name;
+            final String sha256;
+            final long size;
+            final String uploader;
+            final String room;
+            final long timestamp;
 
-            ClientHandler targetClient = connectedClients.get(targetUsername);
-            if (targetClient == null) {
-                sendMessage("User " + targetUsername + " not found.");
-                return;
+            Entry(String name, String sha256, long size, String uploader, String room, long timestamp) {
+                this.name = name;
+                this.sha256 = sha256;
+                this.size = size;
+                this.uploader = uploader;
+                this.room = room;
+                this.timestamp = timestamp;
             }
 
-            String timestamp = LocalDateTime.now().format(TIME_FORMATTER);
-            String formattedMessage = String.format(
-                "[%s] [PRIVATE] %s whispers: %s", 
-                timestamp,
-                username, 
-                privateMessage
-            );
+            // What prefix filters match: the original file name, or the voice message id
+            String title() {
+                int separator = name.indexOf('_');
+                return sha256 != null && separator >= 0 ? name.substring(separator + 1) : name;
+            }
 
-            targetClient.sendMessage(formattedMessage);
-            sendMessage(formattedMessage);
-            
-            // Log private messages in both users' rooms if they are in rooms
-            if (currentRoom != null) {
-                currentRoom.logMessage(formattedMessage + " (to: " + targetUsername + ")");
+            String toLine() {
+                return (sha256 == null ? "-" : sha256) + '\t' + size + '\t' + timestamp + '\t'
+                     + field(uploader) + '\t' + field(room) + '\t' + field(name);
             }
-            if (targetClient.currentRoom != null && targetClient.currentRoom != currentRoom) {
-                targetClient.currentRoom.logMessage(formattedMessage + " (from: " + username + ")");
+
+            static Entry parse(String line) {
+                String[] fields = line.split("\t", 6);
+                if (fields.length == 6) {
+                    return new Entry(fields[5], "-".equals(fields[0]) ? null : fields[0], Long.parseLong(fields[1]),
+                                     fields[3], fields[4], Long.parseLong(fields[2]));
+                }
+                // Written before uploads recorded who shared them: "sha256 size name"
+                fields = line.split(" ", 3);
+                long timestamp = 0;
+                int separator = fields[2].indexOf('_');
+                if (separator > 0 && ClientHandler.isNumber(fields[2].substring(0, separator))) {
+                    timestamp = Long.parseLong(fields[2].substring(0, separator));
+                }
+                return new Entry(fields[2], fields[0], Long.parseLong(fields[1]), "", "", timestamp);
+            }
+
+            // Keeps a value to one field of one line
+            static String field(String value) {
+                return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
             }
         }
 
-        private void listRoomMembers() {
-            if (currentRoom == null) {
-                sendMessage("You are not in a room.");
-                return;
+        private static final Comparator<Entry> NEWEST_FIRST =
+            Comparator.comparingLong((Entry entry) -> -entry.timestamp).thenComparing(entry -> entry.name);
+
+        private final Path file;
+        private final Map<String, Entry> byName = new ConcurrentHashMap<>();
+        private final NavigableSet<Entry> newest = new ConcurrentSkipListSet<>(NEWEST_FIRST);
+        private final Map<String, NavigableSet<Entry>> byRoom = new ConcurrentHashMap<>();
+        private final Map<String, NavigableSet<Entry>> byUploader = new ConcurrentHashMap<>();
+        // Lower-cased title, then name, so equal titles stay distinct
+        private final NavigableMap<String, Entry> byTitle = new ConcurrentSkipListMap<>();
+        private Writer writer;
+        private int lines;
+
+        MediaIndex(Path file) {
+            this.file = file;
+        }
+
+        void load() throws IOException {
+            if (Files.exists(file)) {
+                for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    try {
+                        if (line.startsWith("-\t") && line.indexOf('\t', 2) < 0) {
+                            unlink(line.substring(2));
+                        } else if (!line.isEmpty()) {
+                            link(Entry.parse(line));
+                        }
+                        lines++;
+                    } catch (RuntimeException e) {
+                        System.err.println("Skipping bad line in " + file + ": " + line);
+                    }
+                }
+            }
+            if (lines > 2 * byName.size() + 100) {
+                compact();
             }
+            writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                                             StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
 
-            List<String> members = currentRoom.getMemberNames();
-            sendMessage("Members in " + currentRoom.name + ":");
-            for (String member : members) {
-                sendMessage("- " + member);
+        // Rewrites the file with one line per live entry
+        private void compact() throws IOException {
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                for (Entry entry : byName.values()) {
+                    out.write(entry.toLine());
+                    out.write('\n');
+                }
             }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            lines = byName.size();
         }
 
-        private void exitCurrentRoom() {
-            if (currentRoom == null) {
-                sendMessage("You are not in a room.");
-                return;
+        Entry get(String name) {
+            return byName.get(name);
+        }
+
+        boolean isEmpty() {
+            return byName.isEmpty();
+        }
+
+        void add(Entry entry) throws IOException {
+            synchronized (this) {
+                append(entry.toLine());
+                link(entry);
             }
+        }
 
-            currentRoom.removeMember(this);
-            currentRoom = null;
-            sendMessage("You have left the room.");
-            listAvailableRooms();
+        // For entries whose stored data has gone missing
+        void remove(String name) {
+            synchronized (this) {
+                if (byName.containsKey(name)) {
+                    try {
+                        append("-\t" + Entry.field(name));
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    unlink(name);
+                }
+            }
         }
 
-        private void createRoom(String roomName) {
-            if (chatRooms.containsKey(roomName)) {
-                sendMessage("Room " + roomName + " already exists.");
+        private void append(String line) throws IOException {
+            writer.write(line);
+            writer.write('\n');
+            writer.flush();
+            lines++;
+        }
+
+        private void link(Entry entry) {
+            unlink(entry.name);
+            byName.put(entry.name, entry);
+            newest.add(entry);
+            byRoom.computeIfAbsent(entry.room, key -> new ConcurrentSkipListSet<>(NEWEST_FIRST)).add(entry);
+            byUploader.computeIfAbsent(entry.uploader, key -> new ConcurrentSkipListSet<>(NEWEST_FIRST)).add(entry);
+            byTitle.put(titleKey(entry), entry);
+        }
+
+        private void unlink(String name) {
+            Entry old = byName.remove(name);
+            if (old == null) {
                 return;
             }
+            newest.remove(old);
+            byRoom.get(old.room).remove(old);
+            byUploader.get(old.uploader).remove(old);
+            byTitle.remove(titleKey(old));
+        }
 
-            ChatRoom newRoom = new ChatRoom(roomName);
-            chatRooms.put(roomName, newRoom);
-            sendMessage("Room " + roomName + " created successfully.");
-            System.out.println("New room created: " + roomName);
+        private static String titleKey(Entry entry) {
+            return entry.title().toLowerCase() + '\0' + entry.name;
         }
 
-        private void joinRoom(String roomName) {
-            ChatRoom newRoom = chatRooms.get(roomName);
-            
-            if (newRoom == null) {
-                sendMessage("Room " + roomName + " does not exist. Use /create to make a new room.");
+        /**
+         * Up to limit entries matching every filter that is not null, after skipping the
+         * first skip matches. Entries come newest first, or by title with a prefix.
+         */
+        List<Entry> find(String room, String uploader, String prefix, int skip, int limit) {
+            Iterable<Entry> source;
+            if (prefix != null) {
+                String from = prefix.toLowerCase();
+                source = byTitle.subMap(from, true, from + Character.MAX_VALUE, false).values();
+            } else if (room != null) {
+                source = byRoom.getOrDefault(room, Collections.emptyNavigableSet());
+            } else if (uploader != null) {
+                source = byUploader.getOrDefault(uploader, Collections.emptyNavigableSet());
+            } else {
+                source = newest;
+            }
+            List<Entry> page = new ArrayList<>(limit);
+            for (Entry entry : source) {
+                if ((room != null && !room.equals(entry.room))
+                        || (uploader != null && !uploader.equals(entry.uploader))) {
+                    continue;
+                }
+                if (skip > 0) {
+                    skip--;
+                } else if (page.size() < limit) {
+                    page.add(entry);
+                } else {
+                    break;
+                }
+            }
+            return page;
+        }
+    }
+
+    /**
+     * Direct buffers for staging file data when zero copy is off. Allocating direct
+     * memory is slow and only reclaimed by GC, so buffers are reused across downloads.
+     */
+    static final class DirectBufferPool {
+        private static final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        private static final AtomicInteger freeCount = new AtomicInteger();
+
+        private DirectBufferPool() {
+        }
+
+        static ByteBuffer acquire() {
+            ByteBuffer buffer = free.poll();
+            if (buffer == null) {
+                return ByteBuffer.allocateDirect(FILE_CHUNK_SIZE);
+            }
+            freeCount.decrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+
+        static void release(ByteBuffer buffer) {
+            if (freeCount.incrementAndGet() <= DIRECT_POOL_SIZE) {
+                free.offer(buffer);
+            } else {
+                freeCount.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Byte-level transport behind a ClientHandler. Outbound buffers go through the
+     * client's OutboundQueue and are written by a single flusher: a pooled writer task
+     * in blocking mode, the owning I/O thread in selector mode.
+     */
+    abstract static class Connection {
+        protected static final ByteBuffer CLOSE_MARKER = ByteBuffer.allocate(0);
+
+        protected final SocketChannel channel;
+        protected final OutboundQueue outbound =
+            new OutboundQueue(OUTBOUND_CAPACITY, OUTBOUND_MAX_BYTES, OUTBOUND_POLICY);
+        protected final AtomicBoolean flushScheduled = new AtomicBoolean();
+        protected final AtomicBoolean closed = new AtomicBoolean();
+        protected volatile boolean closing;
+
+        // Buffers taken off the queue and handed to the socket as one gathering write
+        private final ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH_SIZE];
+        private final long[] batchQueuedAt = new long[WRITE_BATCH_SIZE];
+        private int batchStart;
+        private int batchEnd;
+        // File region being written instead of a batch
+        private FileRegion region;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // Replies to this client; never dropped
+        void send(ByteBuffer data) {
+            if (closing) {
                 return;
             }
+            outbound.offer(data, false);
+            scheduleFlush();
+        }
 
-            if (currentRoom != null) {
-                currentRoom.removeMember(this);
+        // Room traffic; subject to the overflow policy. Returns false when the policy says
+        // to disconnect, leaving that to the caller so no socket is closed under a room lock.
+        boolean deliver(ByteBuffer data) {
+            if (closing) {
+                return true;
+            }
+            if (!outbound.offer(data, true)) {
+                return false;
             }
+            scheduleFlush();
+            return true;
+        }
 
-            currentRoom = newRoom;
-            currentRoom.addMember(this);
-            sendMessage("Joined room: " + roomName);
+        void disconnectSlow() {
+            if (!closing) {
+                System.err.println("Disconnecting slow client " + describe() + " (outbound queue full)");
+                abort();
+            }
         }
 
-        private void broadcastMessage(String message) {
-            if (currentRoom == null) {
-                sendMessage("You are not in a room. Use /join to enter a room.");
+        // Raw file contents, written in order with replies
+        void sendRegion(FileRegion region) {
+            if (closing) {
+                region.release();
                 return;
             }
+            outbound.offerRegion(region);
+            scheduleFlush();
+        }
 
-            String timestamp = LocalDateTime.now()
-                .format(TIME_FORMATTER);
-            
-            String formattedMessage = String.format(
-                "[%s] %s@%s: %s", 
-                timestamp, 
-                username, 
-                currentRoom.name,
-                message
-            );
+        // Bulk download; written only when nothing else is waiting
+        void sendTransfer(BulkTransfer transfer) {
+            if (closing) {
+                transfer.close();
+                return;
+            }
+            outbound.addTransfer(transfer);
+            scheduleFlush();
+        }
 
-            // Broadcast to other users
-            currentRoom.broadcast(formattedMessage, this);
-            
-            // Send the message back to the sender
-            sendMessage(formattedMessage);
+        abstract void scheduleFlush();
+
+        // Refills the write batch once the previous one is fully written. Returns false if
+        // there is nothing left to write or the next thing queued is the close marker.
+        protected boolean nextBatch() {
+            if (region == null && batchStart == batchEnd) {
+                batchStart = 0;
+                batchEnd = outbound.drainTo(batch, batchQueuedAt);
+                if (batchEnd == 0) {
+                    region = outbound.pollRegion();
+                    if (region == null) {
+                        region = outbound.nextBulkChunk();
+                    }
+                }
+            }
+            return region != null || (batchStart < batchEnd && batch[batchStart] != CLOSE_MARKER);
+        }
+
+        protected boolean closeRequested() {
+            return region == null && batchStart < batchEnd && batch[batchStart] == CLOSE_MARKER;
+        }
+
+        // One gathering write of the current batch (or file region); true once all of it
+        // has been written
+        protected boolean writeBatch() throws IOException {
+            if (region != null) {
+                long pending = region.pending();
+                long file = region.remaining();
+                boolean written = region.writeTo(channel);
+                Metrics.bytesOut.add(pending - region.pending());
+                Metrics.downloadBytes.add(file - region.remaining());
+                if (!written) {
+                    return false;
+                }
+                region.release();
+                region = null;
+                return true;
+            }
+            Metrics.bytesOut.add(channel.write(batch, batchStart, batchEnd - batchStart));
+            long now = System.nanoTime();
+            while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                if (batchQueuedAt[batchStart] != 0) {
+                    StageLatency.record(null, StageLatency.Stage.WRITE, now - batchQueuedAt[batchStart]);
+                }
+                batch[batchStart++] = null;
+            }
+            return batchStart == batchEnd;
+        }
+
+        // Only the flushing thread may call this: the region may still be mid-write
+        protected void releaseRegion() {
+            if (region != null) {
+                region.release();
+                region = null;
+            }
+        }
+
+        // Drops whatever is still queued and closes immediately
+        abstract void abort();
+
+        boolean isOpen() {
+            return !closing && !closed.get();
+        }
+
+        OutboundQueue outbound() {
+            return outbound;
+        }
+
+        // Closes once everything queued ahead of this call has been written
+        void close() {
+            if (!closing) {
+                closing = true;
+                outbound.offer(CLOSE_MARKER, false);
+                scheduleFlush();
+            }
+        }
+
+        void closeNow() {
+            closing = true;
+            outbound.closeTransfers();
+            if (closed.compareAndSet(false, true)) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
         }
 
-        private void disconnect() {
+        String describe() {
             try {
-                connectedClients.remove(username);
-                if (currentRoom != null) {
-                    currentRoom.removeMember(this);
+                return String.valueOf(channel.getRemoteAddress());
+            } catch (IOException e) {
+                return "(closed)";
+            }
+        }
+    }
+
+    static class BlockingConnection extends Connection {
+        BlockingConnection(SocketChannel channel) {
+            super(channel);
+        }
+
+        @Override
+        void scheduleFlush() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                threadPool.execute(this::flush);
+            }
+        }
+
+        // Only one flush task runs at a time, so writes need no lock (and never pin a
+        // virtual thread's carrier)
+        private void flush() {
+            try {
+                while (true) {
+                    if (!nextBatch()) {
+                        if (closeRequested()) {
+                            closeNow();
+                            return;
+                        }
+                        flushScheduled.set(false);
+                        // Re-check: a sender may have enqueued after our drain but before the reset
+                        if (outbound.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+                            return;
+                        }
+                        continue;
+                    }
+                    while (!writeBatch()) {
+                        // Blocking channel: keep writing until the whole batch is out
+                    }
+                }
+            } catch (IOException e) {
+                // Closing wakes the reader thread, which then disconnects the client
+                closeNow();
+                releaseRegion();
+            }
+        }
+
+        @Override
+        void abort() {
+            closeNow();
+        }
+    }
+
+    /**
+     * A client in selector mode. The selector thread only waits for readiness and
+     * writes; reading, decoding and the handler itself run on the client pool, one task
+     * at a time per connection, so a command that touches the disk stalls only its own
+     * client. OP_READ is off while a read is being handled and re-armed after, which
+     * keeps the handler's buffers single-threaded and holds back a client that sends
+     * faster than it is served. Replies come back through the outbound queue.
+     */
+    static class NioConnection extends Connection {
+        private final NioWorker worker;
+        private final ClientHandler handler;
+        private SelectionKey key;
+        // Handler work for this client, run in order on the client pool
+        private final Queue<Runnable> handlerTasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean handlerRunning = new AtomicBoolean();
+
+        NioConnection(SocketChannel channel, NioWorker worker, ClientHandler handler) {
+            super(channel);
+            this.worker = worker;
+            this.handler = handler;
+        }
+
+        @Override
+        void scheduleFlush() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                worker.execute(this::flush);
+            }
+        }
+
+        // Runs on the worker thread
+        void flush() {
+            flushScheduled.set(false);
+            try {
+                while (nextBatch()) {
+                    if (!writeBatch()) {
+                        // Socket buffer is full; resume when the selector reports writability
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                if (closeRequested()) {
+                    closeNow();
+                    return;
                 }
-                socket.close();
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } catch (IOException | CancelledKeyException e) {
+                closeNow();
+            }
+        }
+
+        // Selector thread: stops reading until the handler has dealt with this read
+        void onReadable() {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            runHandler(this::readAndHandle);
+        }
+
+        private void readAndHandle() {
+            try {
+                handler.onReadable();
+                worker.execute(this::resumeReading);
             } catch (IOException e) {
+                worker.execute(this::closeNow);
+            } catch (RuntimeException e) {
+                // Never let one misbehaving client take the others down
                 e.printStackTrace();
+                worker.execute(this::closeNow);
             }
         }
 
-        private void sendMessage(String message) {
-            out.println(message);
+        // Worker thread
+        private void resumeReading() {
+            try {
+                if (key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+            } catch (CancelledKeyException e) {
+                // Closed meanwhile
+            }
+        }
+
+        void runHandler(Runnable task) {
+            handlerTasks.add(task);
+            if (handlerRunning.compareAndSet(false, true)) {
+                threadPool.execute(this::drainHandlerTasks);
+            }
+        }
+
+        private void drainHandlerTasks() {
+            while (true) {
+                Runnable task;
+                while ((task = handlerTasks.poll()) != null) {
+                    task.run();
+                }
+                handlerRunning.set(false);
+                // Re-check: a task may have been added after our poll but before the reset
+                if (handlerTasks.isEmpty() || !handlerRunning.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        void abort() {
+            closing = true;
+            worker.execute(this::closeNow);
+        }
+
+        @Override
+        void closeNow() {
+            if (key != null) {
+                key.cancel();
+            }
+            super.closeNow();
+            releaseRegion();
+            // After whatever the handler is still doing for this client
+            runHandler(handler::disconnect);
+        }
+    }
+
+    /**
+     * Accepts connections on the calling thread and spreads them round-robin over a
+     * small fixed set of selector threads, so idle clients cost a buffer, not a thread.
+     */
+    static class NioServer {
+        private final ServerSocketChannel serverChannel;
+        private final NioWorker[] workers;
+
+        NioServer(ServerSocketChannel serverChannel, int threads) throws IOException {
+            this.serverChannel = serverChannel;
+            this.workers = new NioWorker[Math.max(1, threads)];
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = new NioWorker("nio-worker-" + i);
+            }
+        }
+
+        void run() throws IOException {
+            for (NioWorker worker : workers) {
+                worker.start();
+            }
+            int next = 0;
+            while (true) {
+                SocketChannel clientChannel = serverChannel.accept();
+                clientChannel.configureBlocking(false);
+                workers[next].register(clientChannel);
+                next = (next + 1) % workers.length;
+            }
+        }
+    }
+
+    static class NioWorker extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+        NioWorker(String name) throws IOException {
+            super(name);
+            this.selector = Selector.open();
+            setDaemon(true);
+        }
+
+        void register(SocketChannel clientChannel) {
+            execute(() -> {
+                ClientHandler handler = new ClientHandler(clientChannel);
+                NioConnection connection = new NioConnection(clientChannel, this, handler);
+                try {
+                    connection.key = clientChannel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (ClosedChannelException e) {
+                    return;
+                }
+                handler.attach(connection);
+                connection.runHandler(handler::start);
+            });
+        }
+
+        // Runs the task on this worker's thread, immediately if we are already on it
+        void execute(Runnable task) {
+            if (Thread.currentThread() == this) {
+                task.run();
+                return;
+            }
+            tasks.add(task);
+            if (wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    wakeupPending.set(false);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (CancelledKeyException e) {
+                            connection.closeNow();
+                        } catch (RuntimeException e) {
+                            // Never let one misbehaving client take the whole event loop down
+                            e.printStackTrace();
+                            connection.closeNow();
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
         }
     }
 }
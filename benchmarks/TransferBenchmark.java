@@ -0,0 +1,130 @@
+package echochamber;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.Random;
+
+/**
+ * Measures download throughput and sender CPU over a loopback socket for the three
+ * ways the server can move a stored file: the old per-chunk heap copy, the pooled
+ * direct-buffer fallback and FileChannel.transferTo.
+ *
+ * Build and run from the repository root:
+ *   javac -d out ChatServer.java benchmarks/TransferBenchmark.java
+ *   java -cp out echochamber.TransferBenchmark [fileMB] [iterations]
+ */
+public class TransferBenchmark {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int fileMb = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Path file = Files.createTempFile("transfer-bench", ".bin");
+        file.toFile().deleteOnExit();
+        writeRandomFile(file, fileMb * 1024L * 1024L);
+        long size = Files.size(file);
+
+        ServerSocketChannel sink = ServerSocketChannel.open();
+        sink.bind(new InetSocketAddress("localhost", 0));
+        Thread drain = new Thread(() -> drain(sink), "sink");
+        drain.setDaemon(true);
+        drain.start();
+
+        System.out.printf("File: %d MB, %d iterations per mode%n", fileMb, iterations);
+        System.out.printf("%-14s %12s %16s %16s%n", "mode", "MB/s", "CPU ms per GB", "alloc KB per GB");
+        for (String mode : new String[] {"heap-copy", "direct-pooled", "zero-copy"}) {
+            // One untimed pass so JIT and page cache are warm
+            send(mode, file, size, sink);
+            long wall = 0;
+            long cpu = 0;
+            long allocated = 0;
+            for (int i = 0; i < iterations; i++) {
+                long[] sample = send(mode, file, size, sink);
+                wall += sample[0];
+                cpu += sample[1];
+                allocated += sample[2];
+            }
+            double gigabytes = (double) size * iterations / (1L << 30);
+            double seconds = wall / 1e9;
+            System.out.printf("%-14s %12.1f %16.1f %16.1f%n", mode,
+                              size * iterations / (1024.0 * 1024.0) / seconds,
+                              cpu / 1e6 / gigabytes,
+                              allocated / 1024.0 / gigabytes);
+        }
+    }
+
+    // Returns {wall nanos, sender CPU nanos, sender allocated bytes}
+    private static long[] send(String mode, Path file, long size, ServerSocketChannel sink) throws IOException {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        try (SocketChannel socket = SocketChannel.open(sink.getLocalAddress());
+             FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            long cpuStart = threads.getCurrentThreadCpuTime();
+            long allocStart = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            if ("heap-copy".equals(mode)) {
+                heapCopy(source, size, socket);
+            } else {
+                ChatServer.FileRegion region =
+                    new ChatServer.FileRegion(null, source, 0, size, "zero-copy".equals(mode), null);
+                while (!region.writeTo(socket)) {
+                    // Blocking socket: writeTo only returns early on a partial transfer
+                }
+                region.release();
+            }
+            long wall = System.nanoTime() - start;
+            return new long[] {
+                wall,
+                threads.getCurrentThreadCpuTime() - cpuStart,
+                threads.getThreadAllocatedBytes(threadId) - allocStart
+            };
+        }
+    }
+
+    // What sendFileContents did before: a fresh heap buffer per chunk
+    private static void heapCopy(FileChannel source, long size, SocketChannel socket) throws IOException {
+        long sent = 0;
+        while (sent < size) {
+            ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, size - sent));
+            if (source.read(chunk) < 0) {
+                break;
+            }
+            chunk.flip();
+            sent += chunk.remaining();
+            while (chunk.hasRemaining()) {
+                socket.write(chunk);
+            }
+        }
+    }
+
+    private static void drain(ServerSocketChannel sink) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+        while (true) {
+            try (SocketChannel socket = sink.accept()) {
+                while (socket.read(buffer) >= 0) {
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                System.err.println("Sink error: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private static void writeRandomFile(Path file, long size) throws IOException {
+        Random random = new Random(42);
+        byte[] block = new byte[1024 * 1024];
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+}
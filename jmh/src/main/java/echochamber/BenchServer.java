@@ -0,0 +1,62 @@
+package echochamber;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sets up the server in the benchmark JVM as main() would, without a listener, and
+ * logs in ClientHandlers whose output is discarded instead of written to sockets.
+ * The server creates its logs and message store in the working directory, so the
+ * benchmarks are run from a scratch directory.
+ */
+final class BenchServer {
+    private static boolean started;
+    private static int nextUser;
+
+    private BenchServer() {
+    }
+
+    static synchronized void start() throws IOException {
+        if (started) {
+            return;
+        }
+        ChatServer.createDirectories();
+        ChatServer.createDefaultRooms();
+        ChatServer.Mailboxes.load();
+        started = true;
+    }
+
+    static synchronized ChatServer.ClientHandler login() {
+        ChatServer.ClientHandler client = new ChatServer.ClientHandler(null);
+        client.attach(new NullConnection());
+        client.onLine("bench" + nextUser++);
+        return client;
+    }
+
+    // Drops whatever the server sends, as soon as it is queued
+    static final class NullConnection extends ChatServer.Connection {
+        private final ByteBuffer[] batch = new ByteBuffer[64];
+        private final long[] queuedAt = new long[64];
+
+        NullConnection() {
+            super(null);
+        }
+
+        @Override
+        void scheduleFlush() {
+            while (outbound().drainTo(batch, queuedAt) > 0) {
+                // Discarded
+            }
+        }
+
+        @Override
+        void abort() {
+            closing = true;
+        }
+
+        @Override
+        String describe() {
+            return "(benchmark)";
+        }
+    }
+}
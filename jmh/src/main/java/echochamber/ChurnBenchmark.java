@@ -0,0 +1,43 @@
+package echochamber;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * One client moving between two rooms of ten members each: leaving one, joining the
+ * other and the notices both rooms get.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChurnBenchmark {
+    private ChatServer.ClientHandler mover;
+    private boolean inA;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchServer.start();
+        mover = BenchServer.login();
+        mover.onLine("/create ChurnA");
+        mover.onLine("/create ChurnB");
+        for (int i = 0; i < 10; i++) {
+            BenchServer.login().onLine("/join " + (i % 2 == 0 ? "ChurnA" : "ChurnB"));
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void drainLog() {
+        ChatServer.LogWriter.sync();
+    }
+
+    @Benchmark
+    public void joinLeave() {
+        inA = !inA;
+        mover.onLine(inA ? "/join ChurnA" : "/join ChurnB");
+    }
+}
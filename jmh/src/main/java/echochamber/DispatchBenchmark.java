@@ -0,0 +1,30 @@
+package echochamber;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** A read-only command through ClientHandler.onLine: parsing, lookup and the reply. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchBenchmark {
+    private ChatServer.ClientHandler asker;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchServer.start();
+        asker = BenchServer.login();
+        asker.onLine("/create Dispatch");
+        asker.onLine("/join Dispatch");
+    }
+
+    @Benchmark
+    public void members() {
+        asker.onLine("/members");
+    }
+}
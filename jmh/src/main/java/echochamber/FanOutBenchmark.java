@@ -0,0 +1,46 @@
+package echochamber;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * One chat line sent into a room of roomSize members, through command dispatch,
+ * formatting, the room log and delivery to every member's outbound queue.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    public int roomSize;
+
+    private ChatServer.ClientHandler sender;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchServer.start();
+        String room = "Fanout" + roomSize;
+        sender = BenchServer.login();
+        sender.onLine("/create " + room);
+        sender.onLine("/join " + room);
+        for (int i = 1; i < roomSize; i++) {
+            BenchServer.login().onLine("/join " + room);
+        }
+    }
+
+    // The log writer's queue is unbounded; let it catch up between iterations
+    @TearDown(Level.Iteration)
+    public void drainLog() {
+        ChatServer.LogWriter.sync();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        sender.onLine("the quick brown fox jumps over the lazy dog");
+    }
+}
@@ -0,0 +1,71 @@
+package echochamber;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Chat line formatting, alone and followed by ChatRoom publish and fan-out to a room
+ * of ten members, for the old formatting (the current time formatted and then
+ * String.format for every message) against MinuteClock and MessageFormatter. Run
+ * with -prof gc, gc.alloc.rate.norm is the allocation per line and per broadcast.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormatBenchmark {
+    private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("HH:mm");
+    private static final String[] TEXTS = {
+        "hi",
+        "anyone around for the standup?",
+        "the build on main is green again, thanks for fixing the flaky upload test",
+    };
+    private static final int MEMBERS = 10;
+
+    @Param({"format", "builder"})
+    public String mode;
+
+    private boolean builder;
+    private ChatServer.ChatRoom room;
+    private ChatServer.ClientHandler sender;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchServer.start();
+        builder = mode.equals("builder");
+        room = new ChatServer.ChatRoom("Format");
+        sender = BenchServer.login();
+        room.addMember(sender);
+        for (int i = 1; i < MEMBERS; i++) {
+            room.addMember(BenchServer.login());
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void drainLog() {
+        ChatServer.LogWriter.sync();
+    }
+
+    @Benchmark
+    public String line() {
+        return format(TEXTS[next++ % TEXTS.length]);
+    }
+
+    @Benchmark
+    public void broadcast() {
+        room.broadcast(format(TEXTS[next++ % TEXTS.length]), sender);
+    }
+
+    private String format(String text) {
+        return builder
+            ? ChatServer.MessageFormatter.chat("alice", "Format", text)
+            : String.format("[%s] %s@%s: %s", LocalDateTime.now().format(TIME_FORMATTER), "alice", "Format", text);
+    }
+}
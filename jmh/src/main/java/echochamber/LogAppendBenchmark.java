@@ -0,0 +1,36 @@
+package echochamber;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Handing one line to a room log. The write itself happens on the log writer thread,
+ * which is synced at the end of each iteration so its backlog does not carry over.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogAppendBenchmark {
+    private ChatServer.RoomLog log;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchServer.start();
+        log = new ChatServer.RoomLog("BenchLog");
+    }
+
+    @TearDown(Level.Iteration)
+    public void drainLog() {
+        ChatServer.LogWriter.sync();
+    }
+
+    @Benchmark
+    public void append() {
+        log.append("[12:00] alice@BenchLog: an ordinary line of chat for the log");
+    }
+}